@@ -0,0 +1,45 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.sling.rewriter;
+
+import org.osgi.annotation.versioning.ConsumerType;
+
+/**
+ * A {@link Transformer} or {@link Serializer} implementing this interface
+ * can be reused for further pipelines.
+ *
+ * Once a pipeline is finished and the component has been disposed, the
+ * rewriter calls {@link #reset()}. If the component could be reset, it
+ * is put into a bounded pool kept for the factory which created it. The
+ * next pipeline using this factory takes the component from the pool
+ * instead of creating a new one. A reused component is initialized again
+ * and must behave exactly like a newly created one.
+ *
+ * @since 1.1.0
+ */
+@ConsumerType
+public interface Recyclable {
+
+    /**
+     * Reset the state of the component after it has been disposed.
+     * Any state which is specific to a pipeline, like the content handler
+     * or the processing context, must be released. State which is expensive
+     * to build, like compiled patterns, can be kept.
+     * @return {@code true} if the component can be reused, {@code false} otherwise.
+     */
+    boolean reset();
+}
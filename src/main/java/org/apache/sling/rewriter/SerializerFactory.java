@@ -23,7 +23,8 @@ package org.apache.sling.rewriter;
  * end point for the rewriter pipeline.
  *
  * The factories itself are not chained but the resulting serializers
- * are. On each pipeline call new instances are created.
+ * are. On each pipeline call new instances are created, unless the
+ * serializers implement {@link Recyclable} and can be reused.
  *
  * The factory is referenced using a service property named
  * 'pipeline.type'. Each factory should have a unique value
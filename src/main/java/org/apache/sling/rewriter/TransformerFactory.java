@@ -23,7 +23,8 @@ package org.apache.sling.rewriter;
  * the middle part of the rewriter pipeline.
  *
  * The factories itself are not chained but the resulting transformers
- * are. On each pipeline call new instances are created.
+ * are. On each pipeline call new instances are created, unless the
+ * transformers implement {@link Recyclable} and can be reused.
  *
  * The factory is referenced using a service property named
  * 'pipeline.type'. Each factory should have a unique value
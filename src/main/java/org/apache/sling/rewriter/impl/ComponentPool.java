@@ -0,0 +1,53 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.sling.rewriter.impl;
+
+import java.util.concurrent.ArrayBlockingQueue;
+
+/**
+ * Bounded pool of reset {@link org.apache.sling.rewriter.Recyclable}
+ * components created by a single factory.
+ */
+final class ComponentPool {
+
+    /** The maximum number of components kept per factory. */
+    static final int MAX_SIZE = 16;
+
+    private final ArrayBlockingQueue<Object> components = new ArrayBlockingQueue<>(MAX_SIZE);
+
+    /**
+     * Take a component from the pool.
+     * @return The component or {@code null} if the pool is empty.
+     */
+    Object poll() {
+        return this.components.poll();
+    }
+
+    /**
+     * Return a component to the pool. If the pool is full the component is dropped.
+     */
+    void offer(final Object component) {
+        this.components.offer(component);
+    }
+
+    /**
+     * The number of pooled components.
+     */
+    int size() {
+        return this.components.size();
+    }
+}
@@ -16,12 +16,21 @@
  */
 package org.apache.sling.rewriter.impl;
 
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
 import org.apache.sling.rewriter.Generator;
 import org.apache.sling.rewriter.GeneratorFactory;
+import org.apache.sling.rewriter.PipelineConfiguration;
 import org.apache.sling.rewriter.ProcessingContext;
 import org.apache.sling.rewriter.Processor;
 import org.apache.sling.rewriter.ProcessorConfiguration;
 import org.apache.sling.rewriter.ProcessorFactory;
+import org.apache.sling.rewriter.Recyclable;
 import org.apache.sling.rewriter.Serializer;
 import org.apache.sling.rewriter.SerializerFactory;
 import org.apache.sling.rewriter.Transformer;
@@ -83,6 +92,12 @@ public class FactoryCache {
     /** The tracker for processor factories. */
     private final HashingServiceTrackerCustomizer<ProcessorFactory> processorTracker;
 
+    /** The current snapshot of the tracked factories. */
+    private volatile FactoryRegistry registry = FactoryRegistry.EMPTY;
+
+    /** The pools of recyclable components by factory. */
+    private final ConcurrentMap<Object, ComponentPool> pools = new ConcurrentHashMap<>();
+
     public FactoryCache(final BundleContext context)
     throws InvalidSyntaxException {
         this.generatorTracker = new HashingServiceTrackerCustomizer<GeneratorFactory>(context,
@@ -93,6 +108,52 @@ public class FactoryCache {
                 TransformerFactory.class.getName());
         this.processorTracker = new HashingServiceTrackerCustomizer<ProcessorFactory>(context,
                 ProcessorFactory.class.getName());
+        final Runnable listener = new Runnable() {
+
+            @Override
+            public void run() {
+                updateRegistry();
+            }
+        };
+        this.generatorTracker.setListener(listener);
+        this.serializerTracker.setListener(listener);
+        this.transformerTracker.setListener(listener);
+        this.processorTracker.setListener(listener);
+    }
+
+    /**
+     * Replace the snapshot of the tracked factories.
+     */
+    private synchronized void updateRegistry() {
+        final Map<String, SerializerFactory> serializers = this.serializerTracker.getFactories();
+        final Map<String, TransformerFactory> transformers = this.transformerTracker.getFactories();
+        this.registry = new FactoryRegistry(this.registry.getGeneration() + 1,
+                this.generatorTracker.getFactories(),
+                serializers,
+                transformers,
+                this.processorTracker.getFactories());
+
+        // drop the pools of removed factories
+        if ( !this.pools.isEmpty() ) {
+            final Set<Object> factories = Collections.newSetFromMap(new IdentityHashMap<Object, Boolean>());
+            factories.addAll(serializers.values());
+            factories.addAll(transformers.values());
+            for(final TransformerFactoryEntry[] group : this.transformerTracker.getGlobalTransformerFactoryEntries()) {
+                for(final TransformerFactoryEntry entry : group) {
+                    if ( entry != null ) {
+                        factories.add(entry.factory);
+                    }
+                }
+            }
+            this.pools.keySet().retainAll(factories);
+        }
+    }
+
+    /**
+     * The current snapshot of the tracked factories.
+     */
+    FactoryRegistry getRegistry() {
+        return this.registry;
     }
 
     /**
@@ -121,7 +182,7 @@ public class FactoryCache {
      * @return The generator or null if the generator is not available.
      */
     public Generator getGenerator(final String type) {
-        final GeneratorFactory factory = this.generatorTracker.getFactory(type);
+        final GeneratorFactory factory = this.registry.getGeneratorFactory(type);
         if ( factory == null ) {
             LOGGER.debug("Requested generator factory for type '{}' not found.", type);
             return null;
@@ -135,12 +196,12 @@ public class FactoryCache {
      * @return The serializer or null if the serializer is not available.
      */
     public Serializer getSerializer(final String type) {
-        final SerializerFactory factory = this.serializerTracker.getFactory(type);
+        final SerializerFactory factory = this.registry.getSerializerFactory(type);
         if ( factory == null ) {
             LOGGER.debug("Requested serializer factory for type '{}' not found.", type);
             return null;
         }
-        return factory.createSerializer();
+        return this.createSerializer(factory);
     }
 
     /**
@@ -149,12 +210,12 @@ public class FactoryCache {
      * @return The transformer or null if the transformer is not available.
      */
     public Transformer getTransformer(final String type) {
-        final TransformerFactory factory = this.transformerTracker.getFactory(type);
+        final TransformerFactory factory = this.registry.getTransformerFactory(type);
         if ( factory == null ) {
             LOGGER.debug("Requested transformer factory for type '{}' not found.", type);
             return null;
         }
-        return factory.createTransformer();
+        return this.createTransformer(factory);
     }
 
     /**
@@ -163,7 +224,7 @@ public class FactoryCache {
      * @return The processor or null if the processor is not available.
      */
     public Processor getProcessor(final String type) {
-        final ProcessorFactory factory = this.processorTracker.getFactory(type);
+        final ProcessorFactory factory = this.registry.getProcessorFactory(type);
         if ( factory == null ) {
             LOGGER.debug("Requested processor factory for type '{}' not found.", type);
             return null;
@@ -171,61 +232,101 @@ public class FactoryCache {
         return factory.createProcessor();
     }
 
-    private static final Transformer[] EMPTY_ARRAY = new Transformer[0];
-    private static final Transformer[][] EMPTY_DOUBLE_ARRAY = new Transformer[][] {EMPTY_ARRAY, EMPTY_ARRAY};
+    /**
+     * Get a transformer from the factory, reusing a pooled one if available.
+     * @param factory The transformer factory
+     * @return The transformer or {@code null}
+     */
+    Transformer createTransformer(final TransformerFactory factory) {
+        final ComponentPool pool = this.pools.get(factory);
+        final Object pooled = pool == null ? null : pool.poll();
+        return pooled != null ? (Transformer)pooled : factory.createTransformer();
+    }
 
     /**
-     * Return all global transformer factories
-     * the transformer instances in two arrays.
-     * The first array contains all pre transformers and the second one contains
-     * all post transformers.
+     * Get a serializer from the factory, reusing a pooled one if available.
+     * @param factory The serializer factory
+     * @return The serializer or {@code null}
      */
-    public TransformerFactoryEntry[][] getGlobalTransformerFactoryEntries() {
-        return this.transformerTracker.getGlobalTransformerFactoryEntries();
+    Serializer createSerializer(final SerializerFactory factory) {
+        final ComponentPool pool = this.pools.get(factory);
+        final Object pooled = pool == null ? null : pool.poll();
+        return pooled != null ? (Serializer)pooled : factory.createSerializer();
+    }
+
+    /**
+     * Return a disposed component to the pool of its factory.
+     * The component is only pooled if it is {@link Recyclable} and could be reset.
+     * @param factory The factory which created the component
+     * @param component The component
+     */
+    void recycle(final Object factory, final Object component) {
+        if ( component instanceof Recyclable && ((Recyclable)component).reset() ) {
+            ComponentPool pool = this.pools.get(factory);
+            if ( pool == null ) {
+                final ComponentPool newPool = new ComponentPool();
+                pool = this.pools.putIfAbsent(factory, newPool);
+                if ( pool == null ) {
+                    pool = newPool;
+                }
+            }
+            pool.offer(component);
+        }
+    }
+
+    /**
+     * The number of pooled components of the factory.
+     */
+    int getPoolSize(final Object factory) {
+        final ComponentPool pool = this.pools.get(factory);
+        return pool == null ? 0 : pool.size();
+    }
+
+    /**
+     * Get the pipeline with the factories of its components resolved.
+     * The template is cached with the processor configuration and
+     * resolved again once the snapshot of the tracked factories changes.
+     * @param config The pipeline configuration
+     * @return The template
+     */
+    PipelineTemplate getPipelineTemplate(final PipelineConfiguration config) {
+        final FactoryRegistry current = this.registry;
+        if ( config instanceof ProcessorConfigurationImpl ) {
+            final ProcessorConfigurationImpl impl = (ProcessorConfigurationImpl)config;
+            PipelineTemplate template = impl.getPipelineTemplate();
+            if ( template == null || !template.isCurrent(current) ) {
+                template = new PipelineTemplate(this, current, config);
+                impl.setPipelineTemplate(template);
+            }
+            return template;
+        }
+        return new PipelineTemplate(this, current, config);
     }
 
     /**
-     * Lookup all global transformers that apply to the current request and return
+     * Return all global transformer factories
      * the transformer instances in two arrays.
      * The first array contains all pre transformers and the second one contains
      * all post transformers.
-     * @param context The current processing context.
      */
-    public Transformer[][] getGlobalTransformers(final ProcessingContext context) {
-        final TransformerFactory[][] factories = this.transformerTracker.getGlobalTransformerFactories(context);
-        return createTransformers(factories);
+    public TransformerFactoryEntry[][] getGlobalTransformerFactoryEntries() {
+        return this.transformerTracker.getGlobalTransformerFactoryEntries();
     }
 
     /**
-     * Create new instances from the factories
-     * @param factories The transformer factories
-     * @return The transformer instances
+     * Lookup all global transformers that apply to the current request.
+     * @param context The current processing context.
      */
-    Transformer[][] createTransformers(final TransformerFactory[][] factories) {
-        if ( factories == TransformerFactoryServiceTracker.EMPTY_DOUBLE_FACTORY_ARRAY ) {
-            return EMPTY_DOUBLE_ARRAY;
-        }
-        final Transformer[][] transformers = new Transformer[2][];
-        for(int arrayIndex = 0; arrayIndex < 2; arrayIndex++) {
-            int count = factories[arrayIndex].length;
-            for(final TransformerFactory factory : factories[arrayIndex]) {
-                if ( factory == null ) count--;
-            }
-            if ( count == 0 ) {
-                transformers[arrayIndex] = EMPTY_ARRAY;
-            } else {
-                transformers[arrayIndex] = new Transformer[count];
-                int tIndex = 0;
-                for(int i=0; i < factories[arrayIndex].length; i++) {
-                    final TransformerFactory factory = factories[arrayIndex][i];
-                    if ( factory != null ) {
-                        transformers[arrayIndex][tIndex] = factory.createTransformer();
-                        tIndex++;
-                    }
-                }
+    public GlobalTransformers getGlobalTransformers(final ProcessingContext context) {
+        final MatchCache.Entry entry = context instanceof ServletProcessingContext
+                ? ((ServletProcessingContext)context).getMatchEntry() : null;
+        GlobalTransformers transformers = entry == null ? null : entry.getGlobalTransformers();
+        if ( transformers == null ) {
+            transformers = this.transformerTracker.selectGlobalTransformers(context);
+            if ( entry != null ) {
+                entry.setGlobalTransformers(transformers);
             }
         }
-
         return transformers;
     }
 
@@ -266,10 +367,36 @@ public class FactoryCache {
         }
 
         public boolean match(final ProcessingContext context) {
+            return this.match(context, true);
+        }
+
+        /**
+         * Check whether the transformer applies to the context.
+         * @param context The processing context
+         * @param checkPaths Whether to check the paths
+         */
+        boolean match(final ProcessingContext context, final boolean checkPaths) {
             if ( configuration == null ) {
                 return true;
             }
-            return configuration.match(context);
+            return ((ProcessorConfigurationImpl)configuration).match(context, checkPaths);
+        }
+
+        /**
+         * The paths the transformer applies to or {@code null}.
+         */
+        String[] getPaths() {
+            if ( configuration == null ) {
+                return null;
+            }
+            return ((ProcessorConfigurationImpl)configuration).getPaths();
+        }
+
+        /**
+         * Whether the transformer is restricted to resource types.
+         */
+        boolean hasResourceTypes() {
+            return configuration != null && ((ProcessorConfigurationImpl)configuration).hasResourceTypes();
         }
 
         @Override
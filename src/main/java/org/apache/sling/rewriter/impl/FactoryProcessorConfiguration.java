@@ -0,0 +1,91 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.sling.rewriter.impl;
+
+import java.util.Map;
+
+import org.osgi.framework.Constants;
+import org.osgi.service.component.annotations.Activate;
+import org.osgi.service.component.annotations.Component;
+import org.osgi.service.component.annotations.ConfigurationPolicy;
+
+/**
+ * A processor configuration defined by an OSGi factory configuration.
+ *
+ * The configuration supports the same properties as a configuration
+ * resource below {@code config/rewriter}. The configurations of the
+ * components are given as properties prefixed with the component name,
+ * like {@code transformer-linkchecker.maxLength}. The name of the
+ * configuration is taken from the {@link #PROPERTY_NAME} property and
+ * defaults to the PID. The {@link ProcessorManagerImpl} merges these
+ * configurations with the ones found in the repository.
+ */
+@Component(service = FactoryProcessorConfiguration.class,
+    configurationPolicy = ConfigurationPolicy.REQUIRE,
+    configurationPid = FactoryProcessorConfiguration.FACTORY_PID,
+    property = {
+            Constants.SERVICE_VENDOR + "=The Apache Software Foundation"
+    })
+public class FactoryProcessorConfiguration {
+
+    /** The factory PID of the configurations. */
+    public static final String FACTORY_PID = "org.apache.sling.rewriter.ProcessorConfiguration";
+
+    /** The property for the name of the configuration. */
+    public static final String PROPERTY_NAME = "name";
+
+    /** Prefix of the paths the configurations are registered with. */
+    static final String PATH_PREFIX = "osgi:";
+
+    private ProcessorConfigurationImpl configuration;
+
+    private String name;
+
+    private String path;
+
+    @Activate
+    protected void activate(final Map<String, Object> properties) {
+        final Object pid = properties.get(Constants.SERVICE_PID);
+        final Object name = properties.get(PROPERTY_NAME);
+        final String configName = name != null ? name.toString() : String.valueOf(pid);
+        this.configuration = new ProcessorConfigurationImpl(configName, properties);
+        this.name = configName;
+        this.path = PATH_PREFIX + pid + '/' + configName;
+    }
+
+    /**
+     * The processor configuration.
+     */
+    ProcessorConfigurationImpl getConfiguration() {
+        return this.configuration;
+    }
+
+    /**
+     * The name of the configuration, used as the key with the processor manager.
+     * The name might contain slashes, so it can't be derived from the path.
+     */
+    String getName() {
+        return this.name;
+    }
+
+    /**
+     * The path used to register the configuration with the processor manager.
+     */
+    String getPath() {
+        return this.path;
+    }
+}
@@ -0,0 +1,87 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.sling.rewriter.impl;
+
+import java.util.Collections;
+import java.util.Map;
+
+import org.apache.sling.rewriter.GeneratorFactory;
+import org.apache.sling.rewriter.ProcessorFactory;
+import org.apache.sling.rewriter.SerializerFactory;
+import org.apache.sling.rewriter.TransformerFactory;
+
+/**
+ * Immutable snapshot of the factories tracked by the {@link FactoryCache}.
+ *
+ * A new snapshot with a higher generation is created whenever a factory
+ * is added or removed. Resolving all components of a pipeline against
+ * one snapshot guarantees that they are taken from a consistent view,
+ * even while bundles are updated.
+ */
+final class FactoryRegistry {
+
+    static final FactoryRegistry EMPTY = new FactoryRegistry(0,
+            Collections.<String, GeneratorFactory>emptyMap(),
+            Collections.<String, SerializerFactory>emptyMap(),
+            Collections.<String, TransformerFactory>emptyMap(),
+            Collections.<String, ProcessorFactory>emptyMap());
+
+    private final int generation;
+
+    private final Map<String, GeneratorFactory> generators;
+
+    private final Map<String, SerializerFactory> serializers;
+
+    private final Map<String, TransformerFactory> transformers;
+
+    private final Map<String, ProcessorFactory> processors;
+
+    FactoryRegistry(final int generation,
+            final Map<String, GeneratorFactory> generators,
+            final Map<String, SerializerFactory> serializers,
+            final Map<String, TransformerFactory> transformers,
+            final Map<String, ProcessorFactory> processors) {
+        this.generation = generation;
+        this.generators = generators;
+        this.serializers = serializers;
+        this.transformers = transformers;
+        this.processors = processors;
+    }
+
+    /**
+     * The generation of this snapshot, increased with every change.
+     */
+    int getGeneration() {
+        return this.generation;
+    }
+
+    GeneratorFactory getGeneratorFactory(final String type) {
+        return type == null ? null : this.generators.get(type);
+    }
+
+    SerializerFactory getSerializerFactory(final String type) {
+        return type == null ? null : this.serializers.get(type);
+    }
+
+    TransformerFactory getTransformerFactory(final String type) {
+        return type == null ? null : this.transformers.get(type);
+    }
+
+    ProcessorFactory getProcessorFactory(final String type) {
+        return type == null ? null : this.processors.get(type);
+    }
+}
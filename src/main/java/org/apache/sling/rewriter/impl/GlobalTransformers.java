@@ -0,0 +1,87 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.sling.rewriter.impl;
+
+import java.util.BitSet;
+
+import org.apache.sling.rewriter.TransformerFactory;
+import org.apache.sling.rewriter.impl.FactoryCache.TransformerFactoryEntry;
+
+/**
+ * The global transformers applying to a request.
+ *
+ * The selection refers to the positions of the matching entries in the
+ * global transformer factory entries, the transformers are created by
+ * walking the set positions. Instances are immutable and might be shared
+ * between requests of the same shape.
+ */
+final class GlobalTransformers {
+
+    /** The group of the pre transformers. */
+    static final int PRE = 0;
+
+    /** The group of the post transformers. */
+    static final int POST = 1;
+
+    static final GlobalTransformers EMPTY = new GlobalTransformers(TransformerFactoryServiceTracker.EMPTY_DOUBLE_ENTRY_ARRAY,
+            new BitSet(), new BitSet());
+
+    private final TransformerFactoryEntry[][] entries;
+
+    private final BitSet[] matches;
+
+    private final int[] counts;
+
+    /**
+     * Create a new selection.
+     * @param entries The global transformer factory entries
+     * @param pre The positions of the matching pre transformers, must not be changed afterwards.
+     * @param post The positions of the matching post transformers, must not be changed afterwards.
+     */
+    GlobalTransformers(final TransformerFactoryEntry[][] entries, final BitSet pre, final BitSet post) {
+        this.entries = entries;
+        this.matches = new BitSet[] {pre, post};
+        this.counts = new int[] {pre.cardinality(), post.cardinality()};
+    }
+
+    /**
+     * The number of matching transformers of the group.
+     */
+    int getCount(final int group) {
+        return this.counts[group];
+    }
+
+    /**
+     * Get the position of the next matching transformer of the group.
+     * @param group The group
+     * @param from The position to start from
+     * @return The position or {@code -1}
+     */
+    int nextMatch(final int group, final int from) {
+        return this.matches[group].nextSetBit(from);
+    }
+
+    /**
+     * Get the factory of the transformer at the position.
+     * @param group The group
+     * @param position The position returned by {@link #nextMatch(int, int)}
+     * @return The transformer factory
+     */
+    TransformerFactory getFactory(final int group, final int position) {
+        return this.entries[group][position].factory;
+    }
+}
@@ -19,6 +19,7 @@ package org.apache.sling.rewriter.impl;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
+import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
@@ -91,6 +92,9 @@ class HashingServiceTrackerCustomizer<T> extends ServiceTracker<T, T> {
     /** The bundle context. */
     protected final BundleContext context;
 
+    /** Notified after the services have changed. */
+    private volatile Runnable listener;
+
     public HashingServiceTrackerCustomizer(final BundleContext bc, final String serviceClassName) {
         super(bc, serviceClassName, null);
         this.context = bc;
@@ -101,6 +105,34 @@ class HashingServiceTrackerCustomizer<T> extends ServiceTracker<T, T> {
         return entry == null ? null : entry.service;
     }
 
+    /**
+     * Get a copy of the current services by type.
+     */
+    synchronized Map<String, T> getFactories() {
+        final Map<String, T> factories = new HashMap<String, T>();
+        for(final Map.Entry<String, Entry<T>> entry : this.services.entrySet()) {
+            final T service = entry.getValue().service;
+            if ( service != null ) {
+                factories.put(entry.getKey(), service);
+            }
+        }
+        return factories;
+    }
+
+    /**
+     * Set the listener notified after a service has been added or removed.
+     */
+    void setListener(final Runnable listener) {
+        this.listener = listener;
+    }
+
+    void notifyListener() {
+        final Runnable l = this.listener;
+        if ( l != null ) {
+            l.run();
+        }
+    }
+
     String getType(final ServiceReference<T> ref) {
         final String type = (String) ref.getProperty(FactoryCache.PROPERTY_TYPE);
         return type;
@@ -125,6 +157,7 @@ class HashingServiceTrackerCustomizer<T> extends ServiceTracker<T, T> {
                 }
                 entry.add(reference, factory);
             }
+            this.notifyListener();
         }
         return factory;
     }
@@ -142,6 +175,7 @@ class HashingServiceTrackerCustomizer<T> extends ServiceTracker<T, T> {
                     entry.remove(reference);
                 }
             }
+            this.notifyListener();
             this.context.ungetService(reference);
         }
     }
@@ -0,0 +1,300 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.sling.rewriter.impl;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.sling.api.SlingHttpServletRequest;
+import org.apache.sling.api.request.RequestPathInfo;
+import org.apache.sling.api.resource.Resource;
+import org.apache.sling.api.resource.ResourceWrapper;
+import org.apache.sling.rewriter.ProcessorConfiguration;
+import org.apache.sling.rewriter.impl.FactoryCache.TransformerFactoryEntry;
+
+/**
+ * Bounded cache of the matching decisions by request shape.
+ *
+ * The processor configurations and global transformers matching a
+ * request only depend on the content type, the extension, the selectors,
+ * the resource type and which of the configured paths are a prefix of the
+ * resource path. A cache is created for one set of processor configurations
+ * and global transformers, it is replaced as a whole once they change.
+ *
+ * Resource types are matched against the resource type hierarchy, which
+ * is read with the resource resolver of the request. If any configuration
+ * is restricted to resource types, the user of the resolver is therefore
+ * part of the request shape. The cache has to be dropped once resource
+ * types below the search paths change.
+ *
+ * Lookups don't lock. Once the cache is full, entries are evicted with
+ * the clock algorithm: entries which have not been used since the last
+ * sweep are removed, the others get a second chance.
+ */
+final class MatchCache {
+
+    /** The matching decisions for one request shape. */
+    static final class Entry {
+
+        /** The matching processor configurations in order. */
+        final List<ProcessorConfiguration> configurations;
+
+        /** The matching global transformers, computed on first use. */
+        private volatile GlobalTransformers globalTransformers;
+
+        /** Whether the entry has been used since the last eviction sweep. */
+        private volatile boolean referenced;
+
+        Entry(final List<ProcessorConfiguration> configurations) {
+            this.configurations = configurations;
+        }
+
+        GlobalTransformers getGlobalTransformers() {
+            return this.globalTransformers;
+        }
+
+        void setGlobalTransformers(final GlobalTransformers transformers) {
+            this.globalTransformers = transformers;
+        }
+    }
+
+    /** The key describing the shape of a request. */
+    private static final class Key {
+
+        private final String mimeType;
+
+        private final String extension;
+
+        private final String selectors;
+
+        private final String resourceType;
+
+        private final String resourceSuperType;
+
+        private final String unwrappedResourceType;
+
+        private final String unwrappedResourceSuperType;
+
+        /** The user reading the resource type hierarchy, if resource types are matched. */
+        private final String userId;
+
+        /** The matching path prefixes, shared by all keys for the same prefixes. */
+        private final BitSet paths;
+
+        private final boolean error;
+
+        private final int hashCode;
+
+        Key(final String mimeType,
+                final String extension,
+                final String selectors,
+                final Resource resource,
+                final String userId,
+                final BitSet paths,
+                final boolean error) {
+            this.mimeType = mimeType;
+            this.extension = extension;
+            this.selectors = selectors;
+            this.resourceType = resource == null ? null : resource.getResourceType();
+            this.resourceSuperType = resource == null ? null : resource.getResourceSuperType();
+            final Resource unwrapped = resource instanceof ResourceWrapper ? ProcessorConfigurationImpl.unwrap(resource) : null;
+            this.unwrappedResourceType = unwrapped == null ? null : unwrapped.getResourceType();
+            this.unwrappedResourceSuperType = unwrapped == null ? null : unwrapped.getResourceSuperType();
+            this.userId = userId;
+            this.paths = paths;
+            this.error = error;
+            int h = Objects.hashCode(mimeType);
+            h = 31 * h + Objects.hashCode(extension);
+            h = 31 * h + Objects.hashCode(selectors);
+            h = 31 * h + Objects.hashCode(this.resourceType);
+            h = 31 * h + Objects.hashCode(this.resourceSuperType);
+            h = 31 * h + Objects.hashCode(this.unwrappedResourceType);
+            h = 31 * h + Objects.hashCode(this.unwrappedResourceSuperType);
+            h = 31 * h + Objects.hashCode(userId);
+            h = 31 * h + System.identityHashCode(paths);
+            this.hashCode = 31 * h + (error ? 1 : 0);
+        }
+
+        @Override
+        public int hashCode() {
+            return this.hashCode;
+        }
+
+        @Override
+        public boolean equals(final Object obj) {
+            if ( !(obj instanceof Key) ) {
+                return false;
+            }
+            final Key other = (Key)obj;
+            return this.hashCode == other.hashCode
+                   && this.error == other.error
+                   && this.paths == other.paths
+                   && Objects.equals(this.mimeType, other.mimeType)
+                   && Objects.equals(this.extension, other.extension)
+                   && Objects.equals(this.selectors, other.selectors)
+                   && Objects.equals(this.resourceType, other.resourceType)
+                   && Objects.equals(this.resourceSuperType, other.resourceSuperType)
+                   && Objects.equals(this.unwrappedResourceType, other.unwrappedResourceType)
+                   && Objects.equals(this.unwrappedResourceSuperType, other.unwrappedResourceSuperType)
+                   && Objects.equals(this.userId, other.userId);
+        }
+    }
+
+    /** The index this cache has been created for. */
+    private final ProcessorConfigurationIndex index;
+
+    /** The global transformer factories this cache has been created for. */
+    private final TransformerFactoryEntry[][] globalEntries;
+
+    /** All configured path prefixes, each one is an item on its own. */
+    private final PathPrefixIndex prefixes;
+
+    /** Whether any configuration or global transformer is restricted to resource types. */
+    private final boolean resourceTypes;
+
+    private final int maxSize;
+
+    private final ConcurrentHashMap<Key, Entry> entries = new ConcurrentHashMap<>();
+
+    /**
+     * Create a new cache.
+     * @param index The index of the processor configurations
+     * @param globalEntries The global transformer factories
+     * @param maxSize The maximum number of cached request shapes
+     */
+    MatchCache(final ProcessorConfigurationIndex index,
+            final TransformerFactoryEntry[][] globalEntries,
+            final int maxSize) {
+        this.index = index;
+        this.globalEntries = globalEntries;
+        final Set<String> paths = new LinkedHashSet<>();
+        boolean hasResourceTypes = false;
+        for(final ProcessorConfiguration config : index.getConfigurations()) {
+            if ( config instanceof ProcessorConfigurationImpl ) {
+                addPaths(paths, ((ProcessorConfigurationImpl)config).getPaths());
+                hasResourceTypes |= ((ProcessorConfigurationImpl)config).hasResourceTypes();
+            }
+        }
+        for(final TransformerFactoryEntry[] group : globalEntries) {
+            for(final TransformerFactoryEntry entry : group) {
+                if ( entry != null ) {
+                    addPaths(paths, entry.getPaths());
+                    hasResourceTypes |= entry.hasResourceTypes();
+                }
+            }
+        }
+        this.resourceTypes = hasResourceTypes;
+        final List<String[]> items = new ArrayList<>(paths.size());
+        for(final String path : paths) {
+            items.add(new String[] {path});
+        }
+        this.prefixes = new PathPrefixIndex(items);
+        this.maxSize = maxSize;
+    }
+
+    private static void addPaths(final Set<String> paths, final String[] configured) {
+        if ( configured != null ) {
+            for(final String path : configured) {
+                if ( path != null && !"*".equals(path) ) {
+                    paths.add(path);
+                }
+            }
+        }
+    }
+
+    /**
+     * Check whether this cache has been created for the configurations and global transformers.
+     */
+    boolean isValid(final ProcessorConfigurationIndex currentIndex, final TransformerFactoryEntry[][] currentGlobalEntries) {
+        return this.index == currentIndex && this.globalEntries == currentGlobalEntries;
+    }
+
+    /**
+     * Create the key for the request.
+     * @return The key or {@code null} if the decisions for the request can't be cached.
+     */
+    Object createKey(final ServletProcessingContext context) {
+        final SlingHttpServletRequest request = context.getRequest();
+        if ( request.getAttribute(ProcessorConfigurationImpl.ATTR_PIPELINE) != null ) {
+            return null;
+        }
+        final RequestPathInfo info = request.getRequestPathInfo();
+        return new Key(ProcessorConfigurationImpl.getMimeType(context.getContentType()),
+                info.getExtension(),
+                info.getSelectorString(),
+                request.getResource(),
+                this.resourceTypes ? request.getResourceResolver().getUserID() : null,
+                this.prefixes.match(info.getResourcePath()),
+                request.getAttribute("javax.servlet.error.status_code") != null);
+    }
+
+    /**
+     * Get the cached decisions.
+     * @param key The key created by {@link #createKey(ServletProcessingContext)}
+     * @return The entry or {@code null}
+     */
+    Entry get(final Object key) {
+        final Entry entry = this.entries.get(key);
+        if ( entry != null && !entry.referenced ) {
+            entry.referenced = true;
+        }
+        return entry;
+    }
+
+    /**
+     * Cache the decisions.
+     * @param key The key created by {@link #createKey(ServletProcessingContext)}
+     * @param entry The entry
+     */
+    void put(final Object key, final Entry entry) {
+        this.entries.put((Key)key, entry);
+        if ( this.entries.size() > this.maxSize ) {
+            this.evict();
+        }
+    }
+
+    /**
+     * Sweep over the entries until the cache is within its bounds again.
+     * At most two sweeps are needed as the first one clears all references.
+     */
+    private synchronized void evict() {
+        for(int sweep=0; sweep<2 && this.entries.size() > this.maxSize; sweep++) {
+            final Iterator<Entry> iter = this.entries.values().iterator();
+            while ( iter.hasNext() && this.entries.size() > this.maxSize ) {
+                final Entry entry = iter.next();
+                if ( entry.referenced ) {
+                    entry.referenced = false;
+                } else {
+                    iter.remove();
+                }
+            }
+        }
+    }
+
+    /**
+     * The number of cached request shapes.
+     */
+    int size() {
+        return this.entries.size();
+    }
+}
@@ -0,0 +1,40 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.sling.rewriter.impl;
+
+import java.io.IOException;
+import java.io.Writer;
+
+/**
+ * A generator which is able to give up processing and hand the
+ * output it received so far over unchanged.
+ */
+public interface PassThroughGenerator {
+
+    /**
+     * Write the output received so far to the given writer and
+     * stop processing. If this method returns {@code true}, the
+     * generator does not produce any events anymore and
+     * {@link org.apache.sling.rewriter.Generator#finished()} must
+     * not be called.
+     * @param out The writer for the output
+     * @return {@code true} if the output has been handed over,
+     *         {@code false} if processing has already started.
+     * @throws IOException If writing the output fails
+     */
+    boolean passThrough(Writer out) throws IOException;
+}
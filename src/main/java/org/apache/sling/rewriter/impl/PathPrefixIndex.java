@@ -0,0 +1,178 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.sling.rewriter.impl;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+
+/**
+ * Immutable prefix trie over the configured paths of a list of items.
+ *
+ * Each item is configured with a set of path prefixes, an item matches
+ * a path if one of its prefixes is a prefix of the path. Items without
+ * any prefix or with the prefix {@code *} match every path. A lookup
+ * walks the path once, character by character, regardless of how many
+ * prefixes are configured. The matching items are computed up front
+ * for each node, so a lookup does not allocate.
+ */
+final class PathPrefixIndex {
+
+    private static final char[] NO_KEYS = new char[0];
+
+    private static final Node[] NO_CHILDREN = new Node[0];
+
+    private static final class Node {
+
+        /** The sorted characters leading to the children. */
+        char[] keys = NO_KEYS;
+
+        Node[] children = NO_CHILDREN;
+
+        /** The items having a prefix ending at this node, might be {@code null}. */
+        BitSet items;
+
+        /** The items matching a path reaching this node, shared and never modified. */
+        BitSet matching;
+
+        Node getChild(final char c) {
+            final int pos = Arrays.binarySearch(this.keys, c);
+            return pos < 0 ? null : this.children[pos];
+        }
+
+        Node addChild(final char c) {
+            int pos = Arrays.binarySearch(this.keys, c);
+            if ( pos >= 0 ) {
+                return this.children[pos];
+            }
+            pos = -pos - 1;
+            final char[] newKeys = new char[this.keys.length + 1];
+            final Node[] newChildren = new Node[this.children.length + 1];
+            System.arraycopy(this.keys, 0, newKeys, 0, pos);
+            System.arraycopy(this.children, 0, newChildren, 0, pos);
+            System.arraycopy(this.keys, pos, newKeys, pos + 1, this.keys.length - pos);
+            System.arraycopy(this.children, pos, newChildren, pos + 1, this.children.length - pos);
+            final Node child = new Node();
+            newKeys[pos] = c;
+            newChildren[pos] = child;
+            this.keys = newKeys;
+            this.children = newChildren;
+            return child;
+        }
+    }
+
+    private final Node root = new Node();
+
+    /** The items matching every path. */
+    private final BitSet unrestricted = new BitSet();
+
+    /** The number of items. */
+    private final int size;
+
+    /**
+     * Create a new index.
+     * @param paths The configured prefixes for each item, {@code null} or empty for all paths.
+     */
+    PathPrefixIndex(final List<String[]> paths) {
+        this.size = paths.size();
+        for(int i=0; i<this.size; i++) {
+            final String[] prefixes = paths.get(i);
+            if ( prefixes == null || prefixes.length == 0 ) {
+                this.unrestricted.set(i);
+            } else {
+                for(final String prefix : prefixes) {
+                    if ( "*".equals(prefix) ) {
+                        this.unrestricted.set(i);
+                    } else if ( prefix != null ) {
+                        Node node = this.root;
+                        for(int p=0; p<prefix.length(); p++) {
+                            node = node.addChild(prefix.charAt(p));
+                        }
+                        if ( node.items == null ) {
+                            node.items = new BitSet();
+                        }
+                        node.items.set(i);
+                    }
+                }
+            }
+        }
+        complete(this.root, this.unrestricted);
+    }
+
+    /**
+     * Compute the matching items of the node and its children.
+     * @param node The node
+     * @param parentMatching The items matching at the parent node
+     */
+    private static void complete(final Node node, final BitSet parentMatching) {
+        if ( node.items == null ) {
+            node.matching = parentMatching;
+        } else {
+            node.matching = (BitSet)parentMatching.clone();
+            node.matching.or(node.items);
+        }
+        for(final Node child : node.children) {
+            complete(child, node.matching);
+        }
+    }
+
+    /**
+     * Whether at least one item is restricted to some paths.
+     */
+    boolean isRestricted() {
+        return this.unrestricted.cardinality() < this.size;
+    }
+
+    /**
+     * Get the items matching the path.
+     * @param path The path, might be {@code null}.
+     * @return The positions of the matching items, the set is shared and must not be modified.
+     */
+    BitSet match(final String path) {
+        if ( path == null ) {
+            return this.unrestricted;
+        }
+        BitSet result = this.root.matching;
+        Node node = this.root;
+        int index = 0;
+        while ( index < path.length() && (node = node.getChild(path.charAt(index++))) != null ) {
+            result = node.matching;
+        }
+        return result;
+    }
+
+    /**
+     * Check whether any item matches the path.
+     * @param path The path, might be {@code null}.
+     */
+    boolean matches(final String path) {
+        if ( !this.unrestricted.isEmpty() ) {
+            return true;
+        }
+        if ( path != null ) {
+            Node node = this.root;
+            int index = 0;
+            while ( node != null ) {
+                if ( node.items != null ) {
+                    return true;
+                }
+                node = index < path.length() ? node.getChild(path.charAt(index++)) : null;
+            }
+        }
+        return false;
+    }
+}
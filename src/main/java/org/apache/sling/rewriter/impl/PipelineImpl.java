@@ -18,6 +18,7 @@ package org.apache.sling.rewriter.impl;
 
 import java.io.IOException;
 import java.io.PrintWriter;
+import java.io.Writer;
 
 import org.apache.sling.rewriter.Generator;
 import org.apache.sling.rewriter.PipelineConfiguration;
@@ -26,7 +27,9 @@ import org.apache.sling.rewriter.ProcessingContext;
 import org.apache.sling.rewriter.Processor;
 import org.apache.sling.rewriter.ProcessorConfiguration;
 import org.apache.sling.rewriter.Serializer;
+import org.apache.sling.rewriter.SerializerFactory;
 import org.apache.sling.rewriter.Transformer;
+import org.apache.sling.rewriter.TransformerFactory;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.xml.sax.ContentHandler;
@@ -50,15 +53,24 @@ public class PipelineImpl implements Processor {
     /** The transformers. */
     private Transformer[] transformers;
 
+    /** The factories of the transformers, for recycling them. */
+    private TransformerFactory[] transformerFactories;
+
     /** The end point. */
     private Serializer serializer;
 
+    /** The factory of the serializer. */
+    private SerializerFactory serializerFactory;
+
     /** The first component in the pipeline after the generator */
     private ContentHandler firstContentHandler;
 
     /** The factory cache. */
     private final FactoryCache factoryCache;
 
+    /** Set once the output has been handed over to pass through. */
+    private boolean passedThrough;
+
     /**
      * Setup this pipeline.
      */
@@ -74,59 +86,46 @@ public class PipelineImpl implements Processor {
                      ProcessorConfiguration c)
     throws IOException {
         LOGGER.debug("Setting up pipeline...");
-        final PipelineConfiguration config = (PipelineConfiguration)c;
-        final ProcessingComponentConfiguration[] transformerConfigs = config.getTransformerConfigurations();
+        final PipelineTemplate template = this.factoryCache.getPipelineTemplate((PipelineConfiguration)c);
 
         // create components and initialize them
 
         // lets get custom rewriter transformers
-        final Transformer[][] rewriters = this.factoryCache.getGlobalTransformers(processingContext);
+        final GlobalTransformers rewriters = this.factoryCache.getGlobalTransformers(processingContext);
 
-        final ProcessingComponentConfiguration generatorConfig = config.getGeneratorConfiguration();
-        this.generator = this.getPipelineComponent(Generator.class, generatorConfig.getType(), false);
+        final ProcessingComponentConfiguration generatorConfig = template.getGeneratorConfiguration();
+        this.generator = template.createGenerator();
         LOGGER.debug("Using generator type {}: {}.", generatorConfig.getType(), generator);
         generator.init(processingContext, generatorConfig);
 
-        final int transformerCount = (transformerConfigs == null ? 0 : transformerConfigs.length) + rewriters[0].length + rewriters[1].length;
+        final int transformerCount = template.getTransformerCount()
+                + rewriters.getCount(GlobalTransformers.PRE) + rewriters.getCount(GlobalTransformers.POST);
         int index = 0;
         if ( transformerCount > 0 ) {
             // add all pre rewriter transformers
             transformers = new Transformer[transformerCount];
-            for(int i=0; i< rewriters[0].length; i++) {
-                if ( rewriters[0][i] != null ) {
-                    transformers[index] = rewriters[0][i];
-                    LOGGER.debug("Using pre transformer: {}.", transformers[index]);
-                    transformers[index].init(processingContext, ProcessingComponentConfigurationImpl.EMPTY);
-                    index++;
-                }
-            }
-            if ( transformerConfigs != null ) {
-                for(int i=0; i< transformerConfigs.length;i++) {
-                    transformers[index] = this.getPipelineComponent(Transformer.class, transformerConfigs[i].getType(),
-                            transformerConfigs[i].getConfiguration().get(ProcessingComponentConfiguration.CONFIGURATION_COMPONENT_OPTIONAL, false));
-                    if ( transformers[index] != null ) {
-                        LOGGER.debug("Using transformer type {}: {}.", transformerConfigs[i].getType(), transformers[index]);
-                        transformers[index].init(processingContext, transformerConfigs[i]);
-                        index++;
-                    } else {
-                        LOGGER.debug("Skipping missing optional transformer of type {}", transformerConfigs[i].getType());
-                    }
-                }
-            }
-            for(int i=0; i< rewriters[1].length; i++) {
-                if ( rewriters[1][i] != null ) {
-                    transformers[index] = rewriters[1][i];
-                    LOGGER.debug("Using post transformer: {}.", transformers[index]);
-                    transformers[index].init(processingContext, ProcessingComponentConfigurationImpl.EMPTY);
+            transformerFactories = new TransformerFactory[transformerCount];
+            index = this.addGlobalTransformers(processingContext, rewriters, GlobalTransformers.PRE, index);
+            for(int i=0; i< template.getTransformerCount(); i++) {
+                final ProcessingComponentConfiguration transformerConfig = template.getTransformerConfiguration(i);
+                transformers[index] = template.createTransformer(i);
+                if ( transformers[index] != null ) {
+                    transformerFactories[index] = template.getTransformerFactory(i);
+                    LOGGER.debug("Using transformer type {}: {}.", transformerConfig.getType(), transformers[index]);
+                    transformers[index].init(processingContext, transformerConfig);
                     index++;
+                } else {
+                    LOGGER.debug("Skipping missing optional transformer of type {}", transformerConfig.getType());
                 }
             }
+            index = this.addGlobalTransformers(processingContext, rewriters, GlobalTransformers.POST, index);
         } else {
             transformers = EMPTY_TRANSFORMERS;
         }
 
-        final ProcessingComponentConfiguration serializerConfig = config.getSerializerConfiguration();
-        this.serializer = this.getPipelineComponent(Serializer.class, serializerConfig.getType(), false);
+        final ProcessingComponentConfiguration serializerConfig = template.getSerializerConfiguration();
+        this.serializer = template.createSerializer();
+        this.serializerFactory = template.getSerializerFactory();
         LOGGER.debug("Using serializer type {}: {}.", serializerConfig.getType(), serializer);
         serializer.init(processingContext, serializerConfig);
 
@@ -143,29 +142,26 @@ public class PipelineImpl implements Processor {
     }
 
     /**
-     * Lookup a pipeline component.
+     * Create and initialize the global transformers of the group.
+     * @return The index after the last added transformer
      */
-    @SuppressWarnings("unchecked")
-    private <ComponentType> ComponentType getPipelineComponent(final Class<ComponentType> typeClass,
-                                                               final String type,
-                                                               final boolean optional)
+    private int addGlobalTransformers(final ProcessingContext processingContext,
+            final GlobalTransformers rewriters,
+            final int group,
+            int index)
     throws IOException {
-        final ComponentType component;
-        if ( typeClass == Generator.class ) {
-            component = (ComponentType)this.factoryCache.getGenerator(type);
-        } else if ( typeClass == Transformer.class ) {
-            component = (ComponentType)this.factoryCache.getTransformer(type);
-        } else if ( typeClass == Serializer.class ) {
-            component = (ComponentType)this.factoryCache.getSerializer(type);
-        } else {
-            component = null;
-        }
-
-        if ( component == null && !optional ) {
-            throw new IOException("Unable to get component of class '" + typeClass + "' with type '" + type + "'.");
+        for(int m = rewriters.nextMatch(group, 0); m >= 0; m = rewriters.nextMatch(group, m + 1)) {
+            final TransformerFactory factory = rewriters.getFactory(group, m);
+            final Transformer transformer = this.factoryCache.createTransformer(factory);
+            if ( transformer != null ) {
+                transformers[index] = transformer;
+                transformerFactories[index] = factory;
+                LOGGER.debug("Using {} transformer: {}.", group == GlobalTransformers.PRE ? "pre" : "post", transformer);
+                transformer.init(processingContext, ProcessingComponentConfigurationImpl.EMPTY);
+                index++;
+            }
         }
-
-        return component;
+        return index;
     }
 
     /**
@@ -176,6 +172,21 @@ public class PipelineImpl implements Processor {
         return this.generator.getWriter();
     }
 
+    /**
+     * Stop processing and hand the output written so far over to
+     * the given writer. This is only possible if the generator supports
+     * it and has not started processing yet.
+     * @param out The writer for the output
+     * @return {@code true} if the pipeline has been bypassed.
+     * @throws IOException If writing the output fails
+     */
+    public boolean passThrough(final Writer out) throws IOException {
+        if ( !this.passedThrough && this.generator instanceof PassThroughGenerator ) {
+            this.passedThrough = ((PassThroughGenerator)this.generator).passThrough(out);
+        }
+        return this.passedThrough;
+    }
+
     /**
      * @see org.apache.sling.rewriter.Processor#getContentHandler()
      */
@@ -189,11 +200,15 @@ public class PipelineImpl implements Processor {
      */
     @Override
     public void finished(final boolean errorOccured) throws IOException {
+        // components are only recycled once the generator is known to be done
+        // with them, a failed generator might still use them from another thread
+        boolean recycle = this.passedThrough;
         try {
             // if an error occurred, we only clean up
-            if ( !errorOccured ) {
+            if ( !errorOccured && !this.passedThrough ) {
                 try {
                     this.generator.finished();
+                    recycle = true;
                 } catch (final SAXException se) {
                     if ( se.getCause() != null && se.getCause() instanceof IOException ) {
                         throw (IOException)se.getCause();
@@ -210,14 +225,21 @@ public class PipelineImpl implements Processor {
                 this.generator.dispose();
             }
             if ( this.transformers != null ) {
-                for(final Transformer transformer : this.transformers ) {
+                for(int i=0; i<this.transformers.length; i++) {
+                    final Transformer transformer = this.transformers[i];
                     if ( transformer != null ) {
                         transformer.dispose();
+                        if ( recycle && this.transformerFactories[i] != null ) {
+                            this.factoryCache.recycle(this.transformerFactories[i], transformer);
+                        }
                     }
                 }
             }
             if ( this.serializer != null ) {
                 this.serializer.dispose();
+                if ( recycle && this.serializerFactory != null ) {
+                    this.factoryCache.recycle(this.serializerFactory, this.serializer);
+                }
             }
         }
     }
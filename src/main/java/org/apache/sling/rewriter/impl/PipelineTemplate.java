@@ -0,0 +1,166 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.sling.rewriter.impl;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.sling.rewriter.Generator;
+import org.apache.sling.rewriter.GeneratorFactory;
+import org.apache.sling.rewriter.PipelineConfiguration;
+import org.apache.sling.rewriter.ProcessingComponentConfiguration;
+import org.apache.sling.rewriter.Serializer;
+import org.apache.sling.rewriter.SerializerFactory;
+import org.apache.sling.rewriter.Transformer;
+import org.apache.sling.rewriter.TransformerFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A pipeline configuration with the factories of its components resolved.
+ *
+ * The template is valid as long as the {@link FactoryRegistry} snapshot
+ * it has been resolved against is the current one. Missing
+ * optional transformers are left out, missing required components are
+ * reported when the component is created.
+ */
+final class PipelineTemplate {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(PipelineTemplate.class);
+
+    private final FactoryCache factoryCache;
+
+    /** The snapshot of the tracked factories this template has been resolved against. */
+    private final FactoryRegistry registry;
+
+    private final ProcessingComponentConfiguration generatorConfig;
+
+    private final GeneratorFactory generatorFactory;
+
+    private final ProcessingComponentConfiguration[] transformerConfigs;
+
+    private final TransformerFactory[] transformerFactories;
+
+    private final ProcessingComponentConfiguration serializerConfig;
+
+    private final SerializerFactory serializerFactory;
+
+    PipelineTemplate(final FactoryCache factoryCache, final FactoryRegistry registry, final PipelineConfiguration config) {
+        this.factoryCache = factoryCache;
+        this.registry = registry;
+        this.generatorConfig = config.getGeneratorConfiguration();
+        this.generatorFactory = registry.getGeneratorFactory(this.generatorConfig.getType());
+
+        final List<ProcessingComponentConfiguration> configs = new ArrayList<>();
+        final List<TransformerFactory> factories = new ArrayList<>();
+        final ProcessingComponentConfiguration[] transformerConfigurations = config.getTransformerConfigurations();
+        if ( transformerConfigurations != null ) {
+            for(final ProcessingComponentConfiguration transformerConfig : transformerConfigurations) {
+                final TransformerFactory factory = registry.getTransformerFactory(transformerConfig.getType());
+                if ( factory != null ) {
+                    configs.add(transformerConfig);
+                    factories.add(factory);
+                } else if ( transformerConfig.getConfiguration().get(ProcessingComponentConfiguration.CONFIGURATION_COMPONENT_OPTIONAL, false) ) {
+                    LOGGER.debug("Skipping missing optional transformer of type {}", transformerConfig.getType());
+                } else {
+                    // keep the position to report the missing transformer
+                    configs.add(transformerConfig);
+                    factories.add(null);
+                }
+            }
+        }
+        this.transformerConfigs = configs.toArray(new ProcessingComponentConfiguration[configs.size()]);
+        this.transformerFactories = factories.toArray(new TransformerFactory[factories.size()]);
+
+        this.serializerConfig = config.getSerializerConfiguration();
+        this.serializerFactory = registry.getSerializerFactory(this.serializerConfig.getType());
+    }
+
+    /**
+     * Check whether this template has been resolved against the snapshot.
+     * @param current The current snapshot of the tracked factories
+     */
+    boolean isCurrent(final FactoryRegistry current) {
+        return this.registry == current;
+    }
+
+    ProcessingComponentConfiguration getGeneratorConfiguration() {
+        return this.generatorConfig;
+    }
+
+    Generator createGenerator() throws IOException {
+        final Generator generator = this.generatorFactory == null ? null : this.generatorFactory.createGenerator();
+        if ( generator == null ) {
+            throw missing(Generator.class, this.generatorConfig.getType());
+        }
+        return generator;
+    }
+
+    /**
+     * The number of transformers in the pipeline, excluding missing optional ones.
+     */
+    int getTransformerCount() {
+        return this.transformerConfigs.length;
+    }
+
+    ProcessingComponentConfiguration getTransformerConfiguration(final int index) {
+        return this.transformerConfigs[index];
+    }
+
+    /**
+     * Create the transformer at the given position.
+     * @return The transformer or {@code null} if an optional transformer is not available.
+     * @throws IOException If a required transformer is not available.
+     */
+    Transformer createTransformer(final int index) throws IOException {
+        final ProcessingComponentConfiguration config = this.transformerConfigs[index];
+        final Transformer transformer = this.transformerFactories[index] == null ? null : this.factoryCache.createTransformer(this.transformerFactories[index]);
+        if ( transformer == null
+             && !config.getConfiguration().get(ProcessingComponentConfiguration.CONFIGURATION_COMPONENT_OPTIONAL, false) ) {
+            throw missing(Transformer.class, config.getType());
+        }
+        return transformer;
+    }
+
+    /**
+     * The factory of the transformer at the given position, might be {@code null}.
+     */
+    TransformerFactory getTransformerFactory(final int index) {
+        return this.transformerFactories[index];
+    }
+
+    SerializerFactory getSerializerFactory() {
+        return this.serializerFactory;
+    }
+
+    ProcessingComponentConfiguration getSerializerConfiguration() {
+        return this.serializerConfig;
+    }
+
+    Serializer createSerializer() throws IOException {
+        final Serializer serializer = this.serializerFactory == null ? null : this.factoryCache.createSerializer(this.serializerFactory);
+        if ( serializer == null ) {
+            throw missing(Serializer.class, this.serializerConfig.getType());
+        }
+        return serializer;
+    }
+
+    private static IOException missing(final Class<?> typeClass, final String type) {
+        return new IOException("Unable to get component of class '" + typeClass + "' with type '" + type + "'.");
+    }
+}
@@ -18,7 +18,9 @@ package org.apache.sling.rewriter.impl;
 
 import java.io.PrintWriter;
 import java.util.Arrays;
-import java.util.HashSet;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
 import java.util.Map;
 import java.util.Set;
 
@@ -27,6 +29,7 @@ import org.apache.sling.api.resource.ResourceResolver;
 import org.apache.sling.api.resource.ResourceUtil;
 import org.apache.sling.api.resource.ResourceWrapper;
 import org.apache.sling.api.resource.ValueMap;
+import org.apache.sling.api.wrappers.ValueMapDecorator;
 import org.apache.sling.rewriter.PipelineConfiguration;
 import org.apache.sling.rewriter.ProcessingComponentConfiguration;
 import org.apache.sling.rewriter.ProcessingContext;
@@ -65,6 +68,12 @@ public class ProcessorConfigurationImpl implements PipelineConfiguration {
 
     static final String PROPERTY_PROCESS_ERROR = "processError";
 
+    static final String PROPERTY_PASS_THROUGH_LIMIT = "passThroughLimit";
+
+    static final String PROPERTY_PASS_THROUGH_NON_MARKUP = "passThroughNonMarkup";
+
+    static final String PROPERTY_PASS_THROUGH_CONTENT_TYPE = "passThroughContentTypeMismatch";
+
     static final String ATTR_PIPELINE = "org.apache.sling.rewriter.pipeline";
 
 
@@ -74,6 +83,9 @@ public class ProcessorConfigurationImpl implements PipelineConfiguration {
     /** For which paths should this processor be applied. */
     private final String[] paths;
 
+    /** The compiled paths, {@code null} if no path is configured. */
+    private final PathPrefixIndex pathIndex;
+
     /** For which extensions should this processor be applied. */
     private final String[] extensions;
 
@@ -86,6 +98,12 @@ public class ProcessorConfigurationImpl implements PipelineConfiguration {
     /** For which selectors should this processor be applied. */
     private final String[] selectors;
 
+    /** The distinct, non empty selectors used for matching. */
+    private final String[] matchSelectors;
+
+    /** The length of the longest selector used for matching. */
+    private final int maxSelectorLength;
+
     /** The order of this processor */
     private final int order;
 
@@ -112,10 +130,22 @@ public class ProcessorConfigurationImpl implements PipelineConfiguration {
 
     private final boolean processErrorResponse;
 
+    /** Number of characters after which the output bypasses the pipeline, zero for never. */
+    private final long passThroughLimit;
+
+    /** Whether output not starting with markup bypasses the pipeline. */
+    private final boolean passThroughNonMarkup;
+
+    /** Whether output bypasses the pipeline if a non matching content type is set later on. */
+    private final boolean passThroughContentTypeMismatch;
+
     private final String descString;
 
     private final String name;
 
+    /** The resolved pipeline, created on first use. */
+    private volatile PipelineTemplate pipelineTemplate;
+
     /**
      * This is the constructor for a pipeline
      */
@@ -130,8 +160,11 @@ public class ProcessorConfigurationImpl implements PipelineConfiguration {
         this.contentTypes = contentTypes != null && contentTypes.length == 0 ? null : contentTypes;
         this.resourceTypes = resourceTypes != null && resourceTypes.length == 0 ? null : resourceTypes;
         this.selectors = selectors != null && selectors.length == 0 ? null : selectors;
+        this.matchSelectors = compileSelectors(this.selectors);
+        this.maxSelectorLength = maxLength(this.matchSelectors);
         this.extensions = extensions != null && extensions.length == 0 ? null : extensions;
         this.paths = paths != null && paths.length == 0 ? null : paths;
+        this.pathIndex = compilePaths(this.paths);
         this.unwrapResources = false;
         this.order = order;
         this.generatorConfiguration = null;
@@ -142,6 +175,9 @@ public class ProcessorConfigurationImpl implements PipelineConfiguration {
         this.isValid = true;
         this.isPipeline = true;
         this.processErrorResponse = processError;
+        this.passThroughLimit = 0;
+        this.passThroughNonMarkup = false;
+        this.passThroughContentTypeMismatch = false;
         this.descString = this.buildDescString();
     }
 
@@ -150,24 +186,51 @@ public class ProcessorConfigurationImpl implements PipelineConfiguration {
      * This constructor reads the configuration from the specified resource.
      */
     public ProcessorConfigurationImpl(final Resource resource) {
-        this.name = resource.getName();
-        final ValueMap properties = ResourceUtil.getValueMap(resource);
+        this(resource.getName(), ResourceUtil.getValueMap(resource), resource);
+    }
+
+    /**
+     * Constructor.
+     * This constructor reads the configuration from a map, for example the
+     * properties of an OSGi configuration. The configurations of the components
+     * are read from the properties prefixed with the name of the component
+     * followed by a dot, like {@code transformer-linkchecker.maxLength}.
+     */
+    public ProcessorConfigurationImpl(final String name, final Map<String, Object> properties) {
+        this(name, new ValueMapDecorator(properties), null);
+    }
+
+    private ProcessorConfigurationImpl(final String name, final ValueMap properties, final Resource resource) {
+        this.name = name;
         this.contentTypes = properties.get(PROPERTY_CONTENT_TYPES, String[].class);
         this.resourceTypes = properties.get(PROPERTY_RESOURCE_TYPES, String[].class);
         this.unwrapResources = properties.get(PROPERTY_UNWRAP_RESOURCES, false);
         this.selectors = properties.get(PROPERTY_SELECTORS, String[].class);
+        this.matchSelectors = compileSelectors(this.selectors);
+        this.maxSelectorLength = maxLength(this.matchSelectors);
         this.paths = properties.get(PROPERTY_PATHS, String[].class);
+        this.pathIndex = compilePaths(this.paths);
         this.extensions = properties.get(PROPERTY_EXTENSIONS, String[].class);
 
-        this.processorConfig = this.getComponentConfig(resource, PROPERTY_PROCESSOR_TYPE, "processor");
-        this.generatorConfiguration = this.getComponentConfig(resource, PROPERTY_GENERATOR, "generator");
-        this.transformerConfigurations = this.getComponentConfigs(resource, PROPERTY_TRANFORMERS, "transformer");
-        this.serializerConfiguration = this.getComponentConfig(resource, PROPERTY_SERIALIZER, "serializer");
+        if ( resource != null ) {
+            this.processorConfig = this.getComponentConfig(resource, PROPERTY_PROCESSOR_TYPE, "processor");
+            this.generatorConfiguration = this.getComponentConfig(resource, PROPERTY_GENERATOR, "generator");
+            this.transformerConfigurations = this.getComponentConfigs(resource, PROPERTY_TRANFORMERS, "transformer");
+            this.serializerConfiguration = this.getComponentConfig(resource, PROPERTY_SERIALIZER, "serializer");
+        } else {
+            this.processorConfig = first(getComponentConfigs(properties, PROPERTY_PROCESSOR_TYPE, "processor"));
+            this.generatorConfiguration = first(getComponentConfigs(properties, PROPERTY_GENERATOR, "generator"));
+            this.transformerConfigurations = getComponentConfigs(properties, PROPERTY_TRANFORMERS, "transformer");
+            this.serializerConfiguration = first(getComponentConfigs(properties, PROPERTY_SERIALIZER, "serializer"));
+        }
 
         this.order = properties.get(PROPERTY_ORDER, 0);
         this.isActive = properties.get(PROPERTY_ACTIVE, true);
         this.processErrorResponse = properties.get(PROPERTY_PROCESS_ERROR, true);
         this.isPipeline = this.processorConfig == null;
+        this.passThroughLimit = properties.get(PROPERTY_PASS_THROUGH_LIMIT, 0L);
+        this.passThroughNonMarkup = properties.get(PROPERTY_PASS_THROUGH_NON_MARKUP, false);
+        this.passThroughContentTypeMismatch = properties.get(PROPERTY_PASS_THROUGH_CONTENT_TYPE, false);
 
         // let's do a sanity check!
         if ( this.isPipeline ) {
@@ -217,6 +280,14 @@ public class ProcessorConfigurationImpl implements PipelineConfiguration {
         pw.println(this.processErrorResponse);
         pw.print("Order : ");
         pw.println(this.order);
+        if ( this.isPassThroughEnabled() ) {
+            pw.print("Pass Through : limit=");
+            pw.print(this.passThroughLimit);
+            pw.print(", nonMarkup=");
+            pw.print(this.passThroughNonMarkup);
+            pw.print(", contentTypeMismatch=");
+            pw.println(this.passThroughContentTypeMismatch);
+        }
         if (this.name != null) {
             pw.print("Active : ");
             pw.println(this.isActive);
@@ -355,6 +426,92 @@ public class ProcessorConfigurationImpl implements PipelineConfiguration {
         return null;
     }
 
+    /**
+     * Read the component configurations from prefixed properties.
+     * The same two naming schemes as for child resources are supported,
+     * {prefix}-{type}.{property} and {prefix}-{index}.{property}.
+     */
+    private static ProcessingComponentConfiguration[] getComponentConfigs(final ValueMap properties,
+                                                                          final String propertyName,
+                                                                          final String prefix) {
+        final String[] types = properties.get(propertyName, String[].class);
+        if ( types != null && types.length > 0 ) {
+            final ProcessingComponentConfiguration[] configs = new ProcessingComponentConfiguration[types.length];
+            for(int i=0; i<types.length; i++) {
+                ValueMap config = getPrefixedProperties(properties, prefix + '-' + types[i] + '.');
+                if ( config == null ) {
+                    config = getPrefixedProperties(properties, prefix + '-' + (i+1) + '.');
+                }
+                configs[i] = new ProcessingComponentConfigurationImpl(types[i], config);
+            }
+            return configs;
+        }
+        return null;
+    }
+
+    /**
+     * Get all properties starting with the prefix, with the prefix removed.
+     * @return The properties or {@code null} if there is none.
+     */
+    private static ValueMap getPrefixedProperties(final ValueMap properties, final String prefix) {
+        Map<String, Object> result = null;
+        for(final Map.Entry<String, Object> entry : properties.entrySet()) {
+            if ( entry.getKey().startsWith(prefix) ) {
+                if ( result == null ) {
+                    result = new HashMap<>();
+                }
+                result.put(entry.getKey().substring(prefix.length()), entry.getValue());
+            }
+        }
+        return result == null ? null : new ValueMapDecorator(result);
+    }
+
+    private static ProcessingComponentConfiguration first(final ProcessingComponentConfiguration[] configs) {
+        if ( configs != null && configs.length > 0 ) {
+            return configs[0];
+        }
+        return null;
+    }
+
+    /**
+     * The content types this configuration applies to or {@code null}.
+     */
+    String[] getContentTypes() {
+        return this.contentTypes;
+    }
+
+    /**
+     * The extensions this configuration applies to or {@code null}.
+     */
+    String[] getExtensions() {
+        return this.extensions;
+    }
+
+    /**
+     * The paths this configuration applies to or {@code null}.
+     */
+    String[] getPaths() {
+        return this.paths;
+    }
+
+    /**
+     * Whether this configuration is restricted to resource types.
+     */
+    boolean hasResourceTypes() {
+        return this.resourceTypes != null && this.resourceTypes.length > 0;
+    }
+
+    /**
+     * The resolved pipeline or {@code null}.
+     */
+    PipelineTemplate getPipelineTemplate() {
+        return this.pipelineTemplate;
+    }
+
+    void setPipelineTemplate(final PipelineTemplate template) {
+        this.pipelineTemplate = template;
+    }
+
     /**
      * Return the order of this configuration for sorting.
      */
@@ -366,6 +523,17 @@ public class ProcessorConfigurationImpl implements PipelineConfiguration {
      * @see org.apache.sling.rewriter.ProcessorConfiguration#match(org.apache.sling.rewriter.ProcessingContext)
      */
     public boolean match(final ProcessingContext processContext) {
+        return this.match(processContext, true);
+    }
+
+    /**
+     * Check whether this configuration matches the context.
+     * @param processContext The processing context
+     * @param checkPaths Whether to check the paths, callers which already
+     *                   checked them with a shared {@link PathPrefixIndex} pass {@code false}
+     * @return {@code true} if the configuration matches
+     */
+    boolean match(final ProcessingContext processContext, final boolean checkPaths) {
         if ( !this.processErrorResponse && processContext.getRequest().getAttribute("javax.servlet.error.status_code") != null ) {
             return false;
         }
@@ -375,16 +543,7 @@ public class ProcessorConfigurationImpl implements PipelineConfiguration {
             return false;
         }
 
-        String contentType = processContext.getContentType();
-        // if no content type is supplied, we assume html
-        if ( contentType == null ) {
-            contentType = ProcessorManagerImpl.MIME_TYPE_HTML;
-        } else {
-            final int idx = contentType.indexOf(';');
-            if (idx != -1) {
-                contentType = contentType.substring(0, idx);
-            }
-        }
+        final String contentType = getMimeType(processContext.getContentType());
 
         // check content type first
         // if no content type is configured we apply to all
@@ -419,7 +578,27 @@ public class ProcessorConfigurationImpl implements PipelineConfiguration {
             }
         }
         // check resource types
-        if ( this.resourceTypes != null && this.resourceTypes.length > 0 ) {
+        if ( this.resourceTypes != null && this.resourceTypes.length > 0
+             && processContext instanceof ServletProcessingContext ) {
+            // use the hierarchy resolved once for the request
+            final ServletProcessingContext servletContext = (ServletProcessingContext)processContext;
+            boolean found = false;
+            int index = 0;
+            while ( !found && index < this.resourceTypes.length ) {
+                if ( servletContext.getResourceTypeHierarchy(false).contains(resourceTypes[index]) ) {
+                    found = true;
+                } else if ( unwrapResources && processContext.getRequest().getResource() instanceof ResourceWrapper ) {
+                    // accept resource as well if type was overridden and unwrapped resource has a matching type
+                    if ( servletContext.getResourceTypeHierarchy(true).contains(resourceTypes[index]) ) {
+                        found = true;
+                    }
+                }
+                index++;
+            }
+            if ( !found ) {
+                return false;
+            }
+        } else if ( this.resourceTypes != null && this.resourceTypes.length > 0 ) {
             final ResourceResolver resourceResolver = processContext.getRequest().getResourceResolver();
             final Resource resource = processContext.getRequest().getResource();
             boolean found = false;
@@ -444,19 +623,9 @@ public class ProcessorConfigurationImpl implements PipelineConfiguration {
 
         // now check for path
         // if no path is configured, we apply to all paths
-        if ( this.paths != null && this.paths.length > 0 ) {
+        if ( checkPaths && this.pathIndex != null ) {
             final String path = processContext.getRequest().getRequestPathInfo().getResourcePath();
-            int index = 0;
-            boolean found = false;
-            while ( !found && index < this.paths.length ) {
-                if ( this.paths[index].equals("*") ) {
-                    found = true;
-                } else if ( path.startsWith(this.paths[index]) ) {
-                    found = true;
-                }
-                index++;
-            }
-            if ( !found ) {
+            if ( !this.pathIndex.matches(path) ) {
                 return false;
             }
         }
@@ -469,23 +638,91 @@ public class ProcessorConfigurationImpl implements PipelineConfiguration {
                 return false;
             }
 
-            final Set<String> selectors = new HashSet<String>(Arrays.asList(selectorString.split("\\.")));
-            int index = 0;
-            boolean found = false;
-            while ( !found && index < this.selectors.length ) {
-                final String selector = this.selectors[index];
-                if( selectors.contains(selector) ) {
-                    found = true;
+            if( !this.containsSelector(selectorString) ) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Check whether the selector string contains one of the configured selectors.
+     * The selector string is scanned in place, segment by segment.
+     */
+    private boolean containsSelector(final String selectorString) {
+        final int length = selectorString.length();
+        int start = 0;
+        while ( start < length ) {
+            int end = selectorString.indexOf('.', start);
+            if ( end == -1 ) {
+                end = length;
+            }
+            final int segmentLength = end - start;
+            if ( segmentLength <= this.maxSelectorLength ) {
+                for(final String selector : this.matchSelectors) {
+                    if ( selector.length() == segmentLength
+                         && selectorString.regionMatches(start, selector, 0, segmentLength) ) {
+                        return true;
+                    }
                 }
-                index++;
             }
+            start = end + 1;
+        }
+        return false;
+    }
 
-            if( !found ) {
-                return false;
+    /**
+     * Compile the configured paths for matching.
+     * @return The index or {@code null} if no path is configured.
+     */
+    private static PathPrefixIndex compilePaths(final String[] paths) {
+        if ( paths == null || paths.length == 0 ) {
+            return null;
+        }
+        return new PathPrefixIndex(Collections.singletonList(paths));
+    }
+
+    /**
+     * Prepare the configured selectors for matching.
+     * @return The distinct, non empty selectors.
+     */
+    private static String[] compileSelectors(final String[] selectors) {
+        if ( selectors == null ) {
+            return new String[0];
+        }
+        final Set<String> result = new LinkedHashSet<>();
+        for(final String selector : selectors) {
+            if ( selector != null && !selector.isEmpty() ) {
+                result.add(selector);
             }
         }
+        return result.toArray(new String[result.size()]);
+    }
 
-        return true;
+    private static int maxLength(final String[] values) {
+        int max = 0;
+        for(final String value : values) {
+            max = Math.max(max, value.length());
+        }
+        return max;
+    }
+
+    /**
+     * Get the mime type of a content type by removing all parameters.
+     * If no content type is supplied, we assume html.
+     * @param contentType The content type or {@code null}
+     * @return The mime type
+     */
+    static String getMimeType(final String contentType) {
+        if ( contentType == null ) {
+            return ProcessorManagerImpl.MIME_TYPE_HTML;
+        }
+        final int idx = contentType.indexOf(';');
+        if (idx != -1) {
+            return contentType.substring(0, idx);
+        }
+        return contentType;
     }
 
     /**
@@ -494,7 +731,7 @@ public class ProcessorConfigurationImpl implements PipelineConfiguration {
      * @param rsrc The resource to unwrap
      * @return The unwrapped resource
      */
-    private static Resource unwrap(final Resource rsrc) {
+    static Resource unwrap(final Resource rsrc) {
         Resource result = rsrc;
         while (result instanceof ResourceWrapper) {
             result = ((ResourceWrapper)result).getResource();
@@ -530,6 +767,36 @@ public class ProcessorConfigurationImpl implements PipelineConfiguration {
         return this.isPipeline;
     }
 
+    /**
+     * Number of characters after which the output bypasses the pipeline.
+     * @return The limit, zero or less if there is no limit.
+     */
+    public long getPassThroughLimit() {
+        return this.passThroughLimit;
+    }
+
+    /**
+     * Should output which does not start with markup bypass the pipeline?
+     */
+    public boolean isPassThroughNonMarkup() {
+        return this.passThroughNonMarkup;
+    }
+
+    /**
+     * Should the output bypass the pipeline if a content type
+     * not matching this configuration is set later on?
+     */
+    public boolean isPassThroughContentTypeMismatch() {
+        return this.passThroughContentTypeMismatch;
+    }
+
+    /**
+     * Is any of the pass through options enabled?
+     */
+    public boolean isPassThroughEnabled() {
+        return this.passThroughLimit > 0 || this.passThroughNonMarkup || this.passThroughContentTypeMismatch;
+    }
+
     /**
      * Is this component active?
      */
@@ -0,0 +1,191 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.sling.rewriter.impl;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.sling.rewriter.ProcessorConfiguration;
+
+/**
+ * Immutable index of the processor configurations by content type, extension and path.
+ *
+ * For every combination of a configured content type and a configured
+ * extension the index holds the configurations which might match, in
+ * the order of the list the index has been created from. Content types
+ * and extensions not used by any configuration are mapped to the
+ * configurations accepting any content type or extension. The configured
+ * paths of all configurations are compiled into a single {@link PathPrefixIndex},
+ * so the path of a request is only walked once to filter the candidates.
+ * The returned candidates still need to be checked with {@link ProcessorConfiguration#match}.
+ */
+final class ProcessorConfigurationIndex {
+
+    /** The empty index. */
+    static final ProcessorConfigurationIndex EMPTY = new ProcessorConfigurationIndex(
+            Collections.<ProcessorConfiguration>emptyList());
+
+    /**
+     * Candidates by content type and extension. The {@code null} key
+     * stands for any content type or extension not configured.
+     */
+    private final Map<String, Map<String, List<ProcessorConfiguration>>> candidates = new HashMap<>();
+
+    /** The indexed configurations. */
+    private final List<ProcessorConfiguration> configurations;
+
+    /** The paths of all configurations. */
+    private final PathPrefixIndex paths;
+
+    /** The position of each configuration in the path index. */
+    private final Map<ProcessorConfiguration, Integer> positions = new IdentityHashMap<>();
+
+    /**
+     * Create a new index.
+     * @param configs The ordered processor configurations, the list must not be changed afterwards.
+     */
+    ProcessorConfigurationIndex(final List<ProcessorConfiguration> configs) {
+        final Set<String> contentTypes = new HashSet<>();
+        final Set<String> extensions = new HashSet<>();
+        final List<String[]> configuredPaths = new ArrayList<>();
+        this.configurations = Collections.unmodifiableList(configs);
+        contentTypes.add(null);
+        extensions.add(null);
+        for(final ProcessorConfiguration config : configs) {
+            this.positions.put(config, configuredPaths.size());
+            if ( config instanceof ProcessorConfigurationImpl ) {
+                final ProcessorConfigurationImpl impl = (ProcessorConfigurationImpl)config;
+                configuredPaths.add(impl.getPaths());
+                if ( impl.getContentTypes() != null ) {
+                    contentTypes.addAll(Arrays.asList(impl.getContentTypes()));
+                }
+                if ( impl.getExtensions() != null ) {
+                    extensions.addAll(Arrays.asList(impl.getExtensions()));
+                }
+            } else {
+                configuredPaths.add(null);
+            }
+        }
+        contentTypes.remove("*");
+        this.paths = new PathPrefixIndex(configuredPaths);
+
+        // many combinations share the same candidates, so share the lists
+        final Map<List<ProcessorConfiguration>, List<ProcessorConfiguration>> lists = new HashMap<>();
+        for(final String contentType : contentTypes) {
+            final Map<String, List<ProcessorConfiguration>> byExtension = new HashMap<>();
+            for(final String extension : extensions) {
+                final List<ProcessorConfiguration> list = new ArrayList<>();
+                for(final ProcessorConfiguration config : configs) {
+                    if ( accepts(config, contentType, extension) ) {
+                        list.add(config);
+                    }
+                }
+                List<ProcessorConfiguration> shared = lists.get(list);
+                if ( shared == null ) {
+                    shared = Collections.unmodifiableList(list);
+                    lists.put(list, shared);
+                }
+                byExtension.put(extension, shared);
+            }
+            this.candidates.put(contentType, byExtension);
+        }
+    }
+
+    /**
+     * The indexed configurations in order.
+     */
+    List<ProcessorConfiguration> getConfigurations() {
+        return this.configurations;
+    }
+
+    /**
+     * Check whether the configuration might match the content type and the extension.
+     * A {@code null} content type or extension stands for a value not configured at all.
+     */
+    private static boolean accepts(final ProcessorConfiguration config, final String contentType, final String extension) {
+        if ( !(config instanceof ProcessorConfigurationImpl) ) {
+            return true;
+        }
+        final ProcessorConfigurationImpl impl = (ProcessorConfigurationImpl)config;
+        final String[] configuredTypes = impl.getContentTypes();
+        if ( configuredTypes != null && configuredTypes.length > 0 ) {
+            boolean found = false;
+            for(final String type : configuredTypes) {
+                if ( type.equals("*") || type.equals(contentType) ) {
+                    found = true;
+                    break;
+                }
+            }
+            if ( !found ) {
+                return false;
+            }
+        }
+        final String[] configuredExtensions = impl.getExtensions();
+        if ( configuredExtensions != null && configuredExtensions.length > 0 ) {
+            return extension != null && Arrays.asList(configuredExtensions).contains(extension);
+        }
+        return true;
+    }
+
+    /**
+     * Get the configurations which might match.
+     * @param contentType The content type of the response, might be {@code null}.
+     * @param extension The extension of the request, might be {@code null}.
+     * @param path The resource path of the request, might be {@code null}.
+     * @return The ordered list of candidates.
+     */
+    List<ProcessorConfiguration> getCandidates(final String contentType, final String extension, final String path) {
+        final List<ProcessorConfiguration> candidates = this.getCandidates(contentType, extension);
+        if ( candidates.isEmpty() || !this.paths.isRestricted() ) {
+            return candidates;
+        }
+        final BitSet matching = this.paths.match(path);
+        final List<ProcessorConfiguration> result = new ArrayList<>(candidates.size());
+        for(final ProcessorConfiguration config : candidates) {
+            if ( matching.get(this.positions.get(config)) ) {
+                result.add(config);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Get the configurations which might match, regardless of the path.
+     * @param contentType The content type of the response, might be {@code null}.
+     * @param extension The extension of the request, might be {@code null}.
+     * @return The ordered list of candidates.
+     */
+    List<ProcessorConfiguration> getCandidates(final String contentType, final String extension) {
+        Map<String, List<ProcessorConfiguration>> byExtension = this.candidates.get(ProcessorConfigurationImpl.getMimeType(contentType));
+        if ( byExtension == null ) {
+            byExtension = this.candidates.get(null);
+        }
+        List<ProcessorConfiguration> result = byExtension.get(extension);
+        if ( result == null ) {
+            result = byExtension.get(null);
+        }
+        return result;
+    }
+}
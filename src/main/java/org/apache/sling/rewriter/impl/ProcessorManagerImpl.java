@@ -16,17 +16,32 @@
  */
 package org.apache.sling.rewriter.impl;
 
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
 import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
-import java.util.HashMap;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 
 import org.apache.sling.api.SlingException;
+import org.apache.sling.api.request.RequestPathInfo;
 import org.apache.sling.api.resource.LoginException;
 import org.apache.sling.api.resource.Resource;
 import org.apache.sling.api.resource.ResourceResolver;
@@ -49,6 +64,7 @@ import org.osgi.service.component.ComponentContext;
 import org.osgi.service.component.annotations.Activate;
 import org.osgi.service.component.annotations.Component;
 import org.osgi.service.component.annotations.Reference;
+import org.osgi.service.component.annotations.ReferenceCardinality;
 import org.osgi.service.component.annotations.ReferencePolicy;
 import org.osgi.service.component.annotations.ReferencePolicyOption;
 import org.slf4j.Logger;
@@ -66,7 +82,8 @@ import org.slf4j.LoggerFactory;
           ResourceChangeListener.CHANGES + "=REMOVED",
           ResourceChangeListener.CHANGES + "=PROVIDER_ADDED",
           ResourceChangeListener.CHANGES + "=PROVIDER_REMOVED",
-          ResourceChangeListener.PATHS + "=glob:*" + ProcessorManagerImpl.CONFIG_PATH + "/**",
+          // all of the search paths, for the configurations and the resource type hierarchy
+          ResourceChangeListener.PATHS + "=.",
           "felix.webconsole.label=slingrewriter",
           "felix.webconsole.title=Sling Rewriter",
           "felix.webconsole.configprinter.modes=always"
@@ -91,14 +108,54 @@ public class ProcessorManagerImpl
     )
     private volatile ServiceUserMapped serviceUserMapped;
 
-    /** loaded processor configurations */
-    private final Map<String, ConfigEntry[]> processors = new HashMap<>();
+    /** loaded processor configurations, in the order they have been found */
+    private final Map<String, ConfigEntry[]> processors = new LinkedHashMap<>();
 
-    /** Ordered processor configurations. */
-    private final List<ProcessorConfiguration> orderedProcessors = new ArrayList<>();
+    /**
+     * Immutable snapshot of the ordered processor configurations together with their index.
+     * Request threads only read this reference, changes publish a new snapshot.
+     */
+    private volatile ProcessorConfigurationIndex index = ProcessorConfigurationIndex.EMPTY;
+
+    /** Maximum number of request shapes with cached matching decisions. */
+    private static final int MAX_CACHED_SHAPES = 512;
+
+    /** The cached matching decisions, replaced once configurations, global transformers or resource types change. */
+    private volatile MatchCache matchCache;
+
+    /** Milliseconds to wait for further changes before they are applied. */
+    private static final long RELOAD_DELAY = 200;
+
+    /** What to do with a changed path. */
+    private enum Reload {
+        /** Reload the configuration at the path. */
+        UPDATE,
+        /** Remove the configuration at the path. */
+        REMOVE,
+        /** Remove all configurations below the path. */
+        REMOVE_TREE
+    }
+
+    /** Changes not applied yet by path, in the order of their last change, guarded by the map. */
+    private final Map<String, Reload> pendingChanges = new LinkedHashMap<>();
+
+    /** The executor applying the changes. */
+    private volatile ScheduledExecutorService reloadExecutor;
+
+    /** Copy of the configurations while a batch of changes is applied, guarded by this. */
+    private List<ProcessorConfiguration> pendingProcessors;
+
+    /** Name of the file in the bundle data area listing the configuration paths. */
+    private static final String SNAPSHOT_FILE = "processors.txt";
+
+    /** The file listing the configuration paths of the last run, might be {@code null}. */
+    private volatile File snapshotFile;
+
+    /** Whether the configurations have been loaded from the snapshot file and not verified yet, guarded by this. */
+    private boolean snapshotLoaded;
 
     /** Search path */
-    private String[] searchPath;
+    private volatile String[] searchPath;
 
     /** The factory cache. */
     private FactoryCache factoryCache;
@@ -111,12 +168,151 @@ public class ProcessorManagerImpl
 	protected void activate(final BundleContext ctx)
     throws LoginException, InvalidSyntaxException {
         this.factoryCache = new FactoryCache(ctx);
+        this.reloadExecutor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+
+            @Override
+            public Thread newThread(final Runnable r) {
+                final Thread t = new Thread(r, "Apache Sling Rewriter Configuration Reload");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+
+        this.snapshotFile = ctx.getDataFile(SNAPSHOT_FILE);
 
         // create array of search paths for actions and constraints
-        this.searchPath = this.initProcessors();
+        synchronized ( this ) {
+            this.beginBatch();
+            try {
+                this.searchPath = this.loadSnapshot();
+                if ( this.searchPath == null ) {
+                    this.searchPath = this.initProcessors();
+                }
+            } finally {
+                this.endBatch();
+            }
+        }
+        if ( this.snapshotLoaded ) {
+            // verify the configurations from the last run in the background
+            this.reloadExecutor.execute(new Runnable() {
+
+                @Override
+                public void run() {
+                    rescan();
+                }
+            });
+        } else {
+            this.reloadExecutor.execute(new Runnable() {
+
+                @Override
+                public void run() {
+                    writeSnapshot();
+                }
+            });
+        }
     	this.factoryCache.start();
     }
 
+    /**
+     * Load the configurations found by the last run.
+     * The first line of the snapshot file contains the search path, each
+     * further line the path of a configuration.
+     * @return The search path or {@code null} if no usable snapshot exists.
+     */
+    private String[] loadSnapshot() throws LoginException {
+        final File file = this.snapshotFile;
+        if ( file == null || !file.exists() ) {
+            return null;
+        }
+        try ( final ResourceResolver resolver = this.createResourceResolver();
+              final BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8)) ) {
+            final String[] currentSearchPath = resolver.getSearchPath();
+            if ( !String.join(",", currentSearchPath).equals(reader.readLine()) ) {
+                return null;
+            }
+            String path;
+            while ( (path = reader.readLine()) != null ) {
+                final Resource configResource = resolver.getResource(path);
+                if ( configResource != null ) {
+                    final ProcessorConfigurationImpl config = this.getProcessorConfiguration(configResource);
+                    this.log.debug("Found processor configuration {} from last run", config);
+                    this.addProcessor(configResource.getName(), path, config);
+                }
+            }
+            this.snapshotLoaded = true;
+            return currentSearchPath;
+        } catch (final IOException ioe) {
+            this.log.warn("Unable to read processor configurations from " + file, ioe);
+            // start over with a full scan
+            this.clearRepositoryProcessors();
+            return null;
+        }
+    }
+
+    /**
+     * Store the paths of all configurations for the next start.
+     * This is only called from the reload executor, so snapshots are never
+     * written concurrently. The snapshot is written to a temporary file
+     * which then replaces the old one, so a crash never leaves a partial
+     * snapshot behind.
+     */
+    private void writeSnapshot() {
+        final File file = this.snapshotFile;
+        if ( file == null ) {
+            return;
+        }
+        final List<String> paths = new ArrayList<>();
+        synchronized ( this ) {
+            for(final ConfigEntry[] entries : this.processors.values()) {
+                for(final ConfigEntry entry : entries) {
+                    if ( isRepositoryPath(entry.path) ) {
+                        paths.add(entry.path);
+                    }
+                }
+            }
+        }
+        File tempFile = null;
+        try {
+            tempFile = File.createTempFile(SNAPSHOT_FILE, ".tmp", file.getParentFile());
+            try ( final BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(tempFile), StandardCharsets.UTF_8)) ) {
+                writer.write(String.join(",", this.searchPath));
+                for(final String path : paths) {
+                    writer.newLine();
+                    writer.write(path);
+                }
+            }
+            Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (final IOException ioe) {
+            this.log.warn("Unable to write processor configurations to " + file, ioe);
+            if ( tempFile != null && tempFile.exists() && !tempFile.delete() ) {
+                this.log.warn("Unable to delete temporary file {}", tempFile);
+            }
+        }
+    }
+
+    /**
+     * Scan the repository for all configurations and replace the ones
+     * loaded from the snapshot.
+     */
+    private void rescan() {
+        synchronized ( this ) {
+            final Map<String, ConfigEntry[]> loaded = new LinkedHashMap<>(this.processors);
+            this.clearRepositoryProcessors();
+            try {
+                this.searchPath = this.initProcessors();
+                this.snapshotLoaded = false;
+            } catch (final LoginException | RuntimeException e) {
+                this.log.error("Unable to scan for processor configurations", e);
+                this.processors.clear();
+                this.processors.putAll(loaded);
+                this.pendingProcessors = null;
+                return;
+            }
+            this.endBatch();
+        }
+        this.writeSnapshot();
+    }
+
     private ResourceResolver createResourceResolver() throws LoginException {
         return this.resourceResolverFactory.getServiceResourceResolver(null);
     }
@@ -126,6 +322,11 @@ public class ProcessorManagerImpl
      * @param ctx
      */
     protected void deactivate(final ComponentContext ctx) {
+        final ScheduledExecutorService executor = this.reloadExecutor;
+        this.reloadExecutor = null;
+        if ( executor != null ) {
+            executor.shutdownNow();
+        }
         this.factoryCache.stop();
         this.factoryCache = null;
     }
@@ -158,34 +359,150 @@ public class ProcessorManagerImpl
                             path = path.substring(0, slashPos);
                         }
                         // we should do the update async as we don't want to block the event delivery
-                        final String configPath = path;
-                        final Thread t = new Thread() {
-                            @Override
-                            public void run() {
-                                if (change.getType() == ChangeType.REMOVED) {
-                                    removeProcessor(configPath);
-                                } else {
-                                    updateProcessor(configPath);
-                                }
-                            }
-                        };
-                        t.start();
+                        this.scheduleChange(path, change.getType() == ChangeType.REMOVED ? Reload.REMOVE : Reload.UPDATE);
                         handled = true;
                     }
                 }
             }
             if ( !handled && change.getType() == ChangeType.REMOVED ) {
-                final Thread t = new Thread() {
-                    @Override
-                    public void run() {
-                        checkRemoval(change.getPath());
+                this.scheduleChange(change.getPath(), Reload.REMOVE_TREE);
+            }
+            if ( !handled && foundPos != -1 ) {
+                // the resource type hierarchy might have changed
+                this.matchCache = null;
+            }
+    	}
+
+    }
+
+    /**
+     * Start a batch without any of the configurations read from the repository.
+     * Configurations from other sources are kept.
+     */
+    private void clearRepositoryProcessors() {
+        this.pendingProcessors = new ArrayList<>();
+        final Iterator<Map.Entry<String, ConfigEntry[]>> iter = this.processors.entrySet().iterator();
+        while ( iter.hasNext() ) {
+            final Map.Entry<String, ConfigEntry[]> entry = iter.next();
+            final List<ConfigEntry> kept = new ArrayList<>();
+            for(final ConfigEntry config : entry.getValue()) {
+                if ( !isRepositoryPath(config.path) ) {
+                    kept.add(config);
+                    if ( ((ProcessorConfigurationImpl)config.config).isActive() ) {
+                        this.pendingProcessors.add(config.config);
                     }
+                }
+            }
+            if ( kept.isEmpty() ) {
+                iter.remove();
+            } else {
+                entry.setValue(kept.toArray(new ConfigEntry[kept.size()]));
+            }
+        }
+    }
+
+    private static boolean isRepositoryPath(final String path) {
+        return path.startsWith("/");
+    }
+
+    /**
+     * Add a processor configuration defined by an OSGi configuration.
+     */
+    @Reference(service = FactoryProcessorConfiguration.class,
+            cardinality = ReferenceCardinality.MULTIPLE,
+            policy = ReferencePolicy.DYNAMIC,
+            policyOption = ReferencePolicyOption.GREEDY)
+    protected void bindFactoryProcessorConfiguration(final FactoryProcessorConfiguration config) {
+        this.addProcessor(config.getName(), config.getPath(), config.getConfiguration());
+    }
+
+    protected void unbindFactoryProcessorConfiguration(final FactoryProcessorConfiguration config) {
+        this.removeProcessor(config.getName(), config.getPath());
+    }
 
-                };
-                t.start();
+    /**
+     * Queue a change. Changes arriving within {@link #RELOAD_DELAY} are
+     * collected, only the last change per path is kept and all of them
+     * are applied together.
+     */
+    private void scheduleChange(final String path, final Reload reload) {
+        final boolean schedule;
+        synchronized ( this.pendingChanges ) {
+            schedule = this.pendingChanges.isEmpty();
+            this.pendingChanges.remove(path);
+            this.pendingChanges.put(path, reload);
+        }
+        final ScheduledExecutorService executor = this.reloadExecutor;
+        if ( schedule && executor != null ) {
+            executor.schedule(new Runnable() {
+
+                @Override
+                public void run() {
+                    applyChanges();
+                }
+            }, RELOAD_DELAY, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Apply all queued changes and publish the result as one snapshot.
+     */
+    private void applyChanges() {
+        final Map<String, Reload> changes;
+        synchronized ( this.pendingChanges ) {
+            changes = new LinkedHashMap<>(this.pendingChanges);
+            this.pendingChanges.clear();
+        }
+        this.applyChanges(changes);
+        this.writeSnapshot();
+    }
+
+    private synchronized void applyChanges(final Map<String, Reload> changes) {
+        this.beginBatch();
+        try {
+            for(final Map.Entry<String, Reload> change : changes.entrySet()) {
+                try {
+                    switch ( change.getValue() ) {
+                        case UPDATE : this.updateProcessor(change.getKey());
+                                      break;
+                        case REMOVE : this.removeProcessor(change.getKey());
+                                      break;
+                        default : this.checkRemoval(change.getKey());
+                    }
+                } catch (final RuntimeException re) {
+                    log.error("Unable to apply change to " + change.getKey(), re);
+                }
             }
-    	}
+        } finally {
+            this.endBatch();
+        }
+    }
+
+    /**
+     * Start collecting changes of the configurations instead of publishing each one.
+     */
+    private void beginBatch() {
+        this.pendingProcessors = new ArrayList<>(this.index.getConfigurations());
+    }
+
+    /**
+     * Publish the configurations collected since {@link #beginBatch()}.
+     */
+    private void endBatch() {
+        final List<ProcessorConfiguration> orderedProcessors = this.pendingProcessors;
+        this.pendingProcessors = null;
+        this.publish(orderedProcessors);
+    }
 
+    /**
+     * Get a modifiable copy of the configurations.
+     * While a batch is applied, this is the copy shared by the whole batch.
+     */
+    private List<ProcessorConfiguration> editProcessors() {
+        if ( this.pendingProcessors != null ) {
+            return this.pendingProcessors;
+        }
+        return new ArrayList<>(this.index.getConfigurations());
     }
 
     /**
@@ -232,7 +549,7 @@ public class ProcessorManagerImpl
     /**
      * adds a processor configuration
      */
-    protected void addProcessor(final String key, final String configPath, final ProcessorConfigurationImpl config) {
+    protected synchronized void addProcessor(final String key, final String configPath, final ProcessorConfigurationImpl config) {
         ConfigEntry[] configs = this.processors.get(key);
         if ( configs == null ) {
             configs = new ConfigEntry[1];
@@ -247,8 +564,21 @@ public class ProcessorManagerImpl
         this.processors.put(key, configs);
         // only add active configurations
         if ( config.isActive() ) {
-            this.orderedProcessors.add(config);
-            Collections.sort(this.orderedProcessors, new ProcessorConfiguratorComparator());
+            final List<ProcessorConfiguration> orderedProcessors = this.editProcessors();
+            orderedProcessors.add(config);
+            this.publish(orderedProcessors);
+        }
+    }
+
+    /**
+     * Sort the processor configurations and publish them as the new snapshot.
+     * Within a batch, nothing is published until the batch ends.
+     * @param orderedProcessors A private copy of the processor configurations
+     */
+    private void publish(final List<ProcessorConfiguration> orderedProcessors) {
+        if ( orderedProcessors != this.pendingProcessors ) {
+            Collections.sort(orderedProcessors, new ProcessorConfiguratorComparator());
+            this.index = new ProcessorConfigurationIndex(orderedProcessors);
         }
     }
 
@@ -297,7 +627,7 @@ public class ProcessorManagerImpl
         pw.println("Active Configurations");
         pw.println("-----------------------------------------------------------------");
         // we process the configs in their order
-        for(final ProcessorConfiguration config : this.orderedProcessors) {
+        for(final ProcessorConfiguration config : this.index.getConfigurations()) {
             // search the corresponding full config
             for(final Map.Entry<String, ConfigEntry[]> entry : this.processors.entrySet()) {
                 if ( entry.getValue().length > 0 && entry.getValue()[0].config == config ) {
@@ -347,7 +677,13 @@ public class ProcessorManagerImpl
      */
     private synchronized void removeProcessor(final String path) {
         final int pos = path.lastIndexOf('/');
-        final String key = path.substring(pos + 1);
+        this.removeProcessor(path.substring(pos + 1), path);
+    }
+
+    /**
+     * removes a pipeline registered with the key
+     */
+    private synchronized void removeProcessor(final String key, final String path) {
         // we have to search the config
 
         final ConfigEntry[] configs = this.processors.get(key);
@@ -361,13 +697,13 @@ public class ProcessorManagerImpl
                 }
             }
             if ( found != null ) {
-                this.orderedProcessors.remove(found.config);
+                final List<ProcessorConfiguration> orderedProcessors = this.editProcessors();
+                orderedProcessors.remove(found.config);
                 if ( configs.length == 1 ) {
                     this.processors.remove(key);
                 } else {
                     if ( found == configs[0] ) {
-                        this.orderedProcessors.add(configs[1].config);
-                        Collections.sort(this.orderedProcessors, new ProcessorConfiguratorComparator());
+                        orderedProcessors.add(configs[1].config);
                     }
                     ConfigEntry[] newArray = new ConfigEntry[configs.length - 1];
                     int index = 0;
@@ -379,22 +715,23 @@ public class ProcessorManagerImpl
                     }
                     this.processors.put(key, newArray);
                 }
+                this.publish(orderedProcessors);
             }
         }
     }
 
     private synchronized void checkRemoval(final String path) {
         final String prefix = path + "/";
-        final List<ConfigEntry> toRemove = new ArrayList<>();
+        final List<String[]> toRemove = new ArrayList<>();
         for(final Map.Entry<String, ConfigEntry[]> entry : this.processors.entrySet()) {
             for(final ConfigEntry config : entry.getValue()) {
                 if ( config.path != null && config.path.startsWith(prefix) ) {
-                    toRemove.add(config);
+                    toRemove.add(new String[] {entry.getKey(), config.path});
                 }
             }
         }
-        for(final ConfigEntry entry : toRemove) {
-            this.removeProcessor(entry.path);
+        for(final String[] entry : toRemove) {
+            this.removeProcessor(entry[0], entry[1]);
         }
     }
 
@@ -435,7 +772,45 @@ public class ProcessorManagerImpl
      */
     @Override
     public List<ProcessorConfiguration> getProcessorConfigurations() {
-        return this.orderedProcessors;
+        return this.index.getConfigurations();
+    }
+
+    /**
+     * Get the processor configurations matching the given context.
+     * The decisions are cached by the shape of the request, for a
+     * request with a cached shape no configuration is matched at all.
+     * @param context The processing context
+     * @return The ordered list of matching configurations
+     */
+    public List<ProcessorConfiguration> getMatchingProcessorConfigurations(final ServletProcessingContext context) {
+        final ProcessorConfigurationIndex currentIndex = this.index;
+        final TransformerFactoryEntry[][] globalEntries = this.factoryCache.getGlobalTransformerFactoryEntries();
+        MatchCache cache = this.matchCache;
+        if ( cache == null || !cache.isValid(currentIndex, globalEntries) ) {
+            cache = new MatchCache(currentIndex, globalEntries, MAX_CACHED_SHAPES);
+            this.matchCache = cache;
+        }
+        final Object key = cache.createKey(context);
+        MatchCache.Entry entry = key == null ? null : cache.get(key);
+        if ( entry == null ) {
+            final RequestPathInfo info = context.getRequest().getRequestPathInfo();
+            final List<ProcessorConfiguration> matching = new ArrayList<>();
+            for(final ProcessorConfiguration config : currentIndex.getCandidates(context.getContentType(),
+                    info.getExtension(), info.getResourcePath())) {
+                // the paths have already been checked by the index
+                final boolean matches = config instanceof ProcessorConfigurationImpl
+                        ? ((ProcessorConfigurationImpl)config).match(context, false) : config.match(context);
+                if ( matches ) {
+                    matching.add(config);
+                }
+            }
+            entry = new MatchCache.Entry(Collections.unmodifiableList(matching));
+            if ( key != null ) {
+                cache.put(key, entry);
+            }
+        }
+        context.setMatchEntry(entry);
+        return entry.configurations;
     }
 
     protected static final class ProcessorConfiguratorComparator implements Comparator<ProcessorConfiguration> {
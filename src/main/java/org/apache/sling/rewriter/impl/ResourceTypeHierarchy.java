@@ -0,0 +1,75 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.sling.rewriter.impl;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import org.apache.sling.api.resource.Resource;
+import org.apache.sling.api.resource.ResourceResolver;
+
+/**
+ * The resource type of a resource together with all its super types.
+ *
+ * The hierarchy is resolved once, checking a resource type against it
+ * gives the same result as {@link ResourceResolver#isResourceType(Resource, String)}
+ * without walking the super types in the repository again. Resource types
+ * are compared relative to the search path of the resource resolver.
+ */
+final class ResourceTypeHierarchy {
+
+    private final String[] searchPath;
+
+    /** The resource types of the hierarchy, relative to the search path. */
+    private final Set<String> types = new HashSet<>();
+
+    /**
+     * Resolve the hierarchy of the resource.
+     * @param resolver The resource resolver
+     * @param resource The resource, might be {@code null}.
+     */
+    ResourceTypeHierarchy(final ResourceResolver resolver, final Resource resource) {
+        this.searchPath = resolver.getSearchPath();
+        if ( resource != null ) {
+            this.types.add(this.relativize(resource.getResourceType()));
+            String superType = resolver.getParentResourceType(resource);
+            while ( superType != null && this.types.add(this.relativize(superType)) ) {
+                superType = resolver.getParentResourceType(superType);
+            }
+        }
+    }
+
+    /**
+     * Check whether the hierarchy contains the resource type.
+     * @param resourceType The resource type
+     * @return {@code true} if the resource is of the given type.
+     */
+    boolean contains(final String resourceType) {
+        return resourceType != null && this.types.contains(this.relativize(resourceType));
+    }
+
+    private String relativize(final String resourceType) {
+        if ( resourceType != null && resourceType.startsWith("/") ) {
+            for(final String prefix : this.searchPath) {
+                if ( resourceType.startsWith(prefix) ) {
+                    return resourceType.substring(prefix.length());
+                }
+            }
+        }
+        return resourceType;
+    }
+}
@@ -59,6 +59,12 @@ class RewriterResponse
     /** The processor manager. */
     private final ProcessorManager processorManager;
 
+    /** The configuration of the processor. */
+    private ProcessorConfiguration processorConfiguration;
+
+    /** The writer deciding on pass through, if enabled for the processor. */
+    private PassThroughWriter passThroughWriter;
+
     /**
      * Initializes a new instance.
      * @param request The sling request.
@@ -78,6 +84,9 @@ class RewriterResponse
     public void setContentType(String type) {
         this.contentType = type;
         super.setContentType(type);
+        if ( this.passThroughWriter != null ) {
+            this.passThroughWriter.contentTypeChanged(type);
+        }
     }
 
     /**
@@ -110,6 +119,13 @@ class RewriterResponse
             this.processor = this.getProcessor();
             if ( this.processor != null ) {
                 this.writer = this.processor.getWriter();
+                if ( this.writer != null && this.processor instanceof PipelineImpl
+                     && this.processorConfiguration instanceof ProcessorConfigurationImpl
+                     && ((ProcessorConfigurationImpl)this.processorConfiguration).isPassThroughEnabled() ) {
+                    this.passThroughWriter = new PassThroughWriter((ProcessorConfigurationImpl)this.processorConfiguration,
+                            (PipelineImpl)this.processor, this.writer);
+                    this.writer = new PrintWriter(this.passThroughWriter);
+                }
             }
             if ( this.writer == null ) {
                 this.writer = super.getWriter();
@@ -138,6 +154,7 @@ class RewriterResponse
             this.processor.finished(errorOccured);
             this.processor = null;
         }
+        this.passThroughWriter = null;
     }
 
     /**
@@ -161,15 +178,23 @@ class RewriterResponse
      * Search the first matching processor
      */
     private Processor getProcessor() {
-        final ProcessingContext processorContext = new ServletProcessingContext(this.request, this, this.getSlingResponse(), this.contentType);
+        final ServletProcessingContext processorContext = new ServletProcessingContext(this.request, this, this.getSlingResponse(), this.contentType);
         Processor found = null;
-        final List<ProcessorConfiguration> processorConfigs = this.processorManager.getProcessorConfigurations();
+        final List<ProcessorConfiguration> processorConfigs;
+        final boolean matched = this.processorManager instanceof ProcessorManagerImpl;
+        if ( matched ) {
+            // the matching configurations are looked up by the shape of the request
+            processorConfigs = ((ProcessorManagerImpl)this.processorManager).getMatchingProcessorConfigurations(processorContext);
+        } else {
+            processorConfigs = this.processorManager.getProcessorConfigurations();
+        }
         final Iterator<ProcessorConfiguration> i = processorConfigs.iterator();
         while ( found == null && i.hasNext() ) {
             final ProcessorConfiguration config = i.next();
-            if ( config.match(processorContext) ) {
+            if ( matched || config.match(processorContext) ) {
                 try {
                     found = this.processorManager.getProcessor(config, processorContext);
+                    this.processorConfiguration = config;
                     this.request.getRequestProgressTracker().log("Found processor for config {0} : {1}", config, found);
                 } catch (final SlingException se) {
                     // if an exception occurs during setup of the pipeline and we are currently
@@ -185,4 +210,120 @@ class RewriterResponse
         }
         return found;
     }
+
+    /**
+     * Writer in front of a pipeline which bypasses the pipeline and
+     * writes directly to the response if the output is not worth rewriting.
+     * The output buffered by the pipeline so far is handed over once and
+     * all further output is written to the response writer.
+     */
+    private final class PassThroughWriter extends Writer {
+
+        private final ProcessorConfigurationImpl config;
+
+        private final PipelineImpl pipeline;
+
+        private final PrintWriter pipelineWriter;
+
+        /** The response writer, only set once the pipeline has been bypassed. */
+        private Writer target;
+
+        /** Whether pass through is still possible. */
+        private boolean checking = true;
+
+        /** Whether the first non whitespace character has yet to be checked. */
+        private boolean checkMarkup;
+
+        /** Number of characters written so far. */
+        private long count;
+
+        PassThroughWriter(final ProcessorConfigurationImpl config,
+                          final PipelineImpl pipeline,
+                          final PrintWriter pipelineWriter) {
+            this.config = config;
+            this.pipeline = pipeline;
+            this.pipelineWriter = pipelineWriter;
+            this.checkMarkup = config.isPassThroughNonMarkup();
+        }
+
+        @Override
+        public void write(final char[] cbuf, final int off, final int len) throws IOException {
+            if ( this.checking ) {
+                this.check(cbuf, off, len);
+            }
+            if ( this.target != null ) {
+                this.target.write(cbuf, off, len);
+            } else {
+                this.pipelineWriter.write(cbuf, off, len);
+            }
+        }
+
+        private void check(final char[] cbuf, final int off, final int len) throws IOException {
+            if ( this.checkMarkup ) {
+                for(int i=off; i<off+len; i++) {
+                    final char c = cbuf[i];
+                    if ( !Character.isWhitespace(c) && c != '\uFEFF' ) {
+                        this.checkMarkup = false;
+                        if ( c != '<' ) {
+                            this.passThrough("output does not start with markup");
+                            return;
+                        }
+                        break;
+                    }
+                }
+            }
+            final long limit = this.config.getPassThroughLimit();
+            if ( limit > 0 ) {
+                this.count += len;
+                if ( this.count > limit ) {
+                    this.passThrough("output exceeds " + limit + " characters");
+                }
+            }
+        }
+
+        /**
+         * Check whether the new content type still matches the configuration.
+         */
+        void contentTypeChanged(final String type) {
+            if ( this.checking && this.config.isPassThroughContentTypeMismatch() ) {
+                final ProcessingContext ctx = new ServletProcessingContext(request, RewriterResponse.this, getSlingResponse(), type);
+                if ( !this.config.match(ctx) ) {
+                    try {
+                        this.passThrough("content type " + type + " does not match");
+                    } catch (final IOException ioe) {
+                        // this is reported by the response writer on the next write
+                    }
+                }
+            }
+        }
+
+        private void passThrough(final String reason) throws IOException {
+            this.checking = false;
+            this.pipelineWriter.flush();
+            final Writer out = getResponse().getWriter();
+            if ( this.pipeline.passThrough(out) ) {
+                this.target = out;
+                request.getRequestProgressTracker().log("Bypassing processor {0} : {1}", this.pipeline, reason);
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            if ( this.target != null ) {
+                this.target.flush();
+            } else {
+                this.pipelineWriter.flush();
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            if ( this.target != null ) {
+                // like the pipeline writer, closing does not close the response
+                this.target.flush();
+            } else {
+                this.pipelineWriter.close();
+            }
+        }
+    }
 }
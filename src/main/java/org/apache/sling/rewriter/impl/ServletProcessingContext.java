@@ -41,6 +41,15 @@ public class ServletProcessingContext implements ProcessingContext {
     /** response content type */
     private final String contentType;
 
+    /** The cached matching decisions for this request, might be {@code null}. */
+    private MatchCache.Entry matchEntry;
+
+    /** The resource type hierarchy of the resource, resolved on demand. */
+    private ResourceTypeHierarchy resourceTypes;
+
+    /** The resource type hierarchy of the unwrapped resource, resolved on demand. */
+    private ResourceTypeHierarchy unwrappedResourceTypes;
+
     /**
      * Initializes a new instance.
      */
@@ -75,6 +84,38 @@ public class ServletProcessingContext implements ProcessingContext {
         return this.response;
     }
 
+    /**
+     * The cached matching decisions for this request.
+     * @return The entry or {@code null} if the decisions are not cached.
+     */
+    MatchCache.Entry getMatchEntry() {
+        return this.matchEntry;
+    }
+
+    void setMatchEntry(final MatchCache.Entry entry) {
+        this.matchEntry = entry;
+    }
+
+    /**
+     * Get the resource type hierarchy of the requested resource.
+     * The hierarchy is resolved once and shared by all checks of this request.
+     * @param unwrapped Whether to use the resource behind any resource wrappers.
+     * @return The resource type hierarchy
+     */
+    ResourceTypeHierarchy getResourceTypeHierarchy(final boolean unwrapped) {
+        if ( unwrapped ) {
+            if ( this.unwrappedResourceTypes == null ) {
+                this.unwrappedResourceTypes = new ResourceTypeHierarchy(this.request.getResourceResolver(),
+                        ProcessorConfigurationImpl.unwrap(this.request.getResource()));
+            }
+            return this.unwrappedResourceTypes;
+        }
+        if ( this.resourceTypes == null ) {
+            this.resourceTypes = new ResourceTypeHierarchy(this.request.getResourceResolver(), this.request.getResource());
+        }
+        return this.resourceTypes;
+    }
+
     /**
      * @see org.apache.sling.rewriter.ProcessingContext#getWriter()
      */
@@ -16,7 +16,11 @@
  */
 package org.apache.sling.rewriter.impl;
 
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
 import org.apache.sling.rewriter.ProcessingContext;
 import org.apache.sling.rewriter.TransformerFactory;
@@ -43,10 +47,91 @@ final class TransformerFactoryServiceTracker extends HashingServiceTrackerCustom
     public static final TransformerFactoryEntry[] EMPTY_ENTRY_ARRAY = new TransformerFactoryEntry[0];
     public static final TransformerFactoryEntry[][] EMPTY_DOUBLE_ENTRY_ARRAY = new TransformerFactoryEntry[][] {EMPTY_ENTRY_ARRAY, EMPTY_ENTRY_ARRAY};
 
-    public static final TransformerFactory[] EMPTY_FACTORY_ARRAY = new TransformerFactory[0];
-    public static final TransformerFactory[][] EMPTY_DOUBLE_FACTORY_ARRAY = new TransformerFactory[][] {EMPTY_FACTORY_ARRAY, EMPTY_FACTORY_ARRAY};
+    /** Maximum number of conditional entries for which all selections are cached. */
+    private static final int MAX_CACHED_CONDITIONAL = 8;
 
-    private TransformerFactoryEntry[][] cached = EMPTY_DOUBLE_ENTRY_ARRAY;
+    /**
+     * The global transformer factory entries together with an index
+     * over their configured paths and the positions of the entries
+     * which apply to every request or need to be checked.
+     *
+     * With up to {@link #MAX_CACHED_CONDITIONAL} conditional entries, the
+     * selections are cached by the combination of matching conditional
+     * entries. Selecting the transformers for a request then doesn't allocate
+     * once the combination has been seen.
+     */
+    private static final class GlobalEntries {
+
+        final TransformerFactoryEntry[][] entries;
+
+        final PathPrefixIndex[] paths;
+
+        /** The entries without any restriction. */
+        final BitSet[] unconditional;
+
+        /** The entries which need to be checked against the request. */
+        final BitSet[] conditional;
+
+        /** The selection if no entry needs to be checked, otherwise {@code null}. */
+        final GlobalTransformers unconditionalSelection;
+
+        /** The selections by the mask of matching conditional entries, might be {@code null}. */
+        final AtomicReferenceArray<GlobalTransformers> selections;
+
+        GlobalEntries(final TransformerFactoryEntry[][] entries) {
+            this.entries = entries;
+            this.paths = new PathPrefixIndex[entries.length];
+            this.unconditional = new BitSet[entries.length];
+            this.conditional = new BitSet[entries.length];
+            int conditionalCount = 0;
+            for(int i=0; i<entries.length; i++) {
+                final List<String[]> configuredPaths = new ArrayList<>(entries[i].length);
+                this.unconditional[i] = new BitSet();
+                this.conditional[i] = new BitSet();
+                for(int m=0; m<entries[i].length; m++) {
+                    final TransformerFactoryEntry entry = entries[i][m];
+                    configuredPaths.add(entry == null ? null : entry.getPaths());
+                    if ( entry != null ) {
+                        if ( entry.configuration == null ) {
+                            this.unconditional[i].set(m);
+                        } else {
+                            this.conditional[i].set(m);
+                            conditionalCount++;
+                        }
+                    }
+                }
+                this.paths[i] = new PathPrefixIndex(configuredPaths);
+            }
+            this.unconditionalSelection = conditionalCount > 0 ? null
+                    : new GlobalTransformers(entries, this.unconditional[0], this.unconditional[1]);
+            this.selections = conditionalCount > 0 && conditionalCount <= MAX_CACHED_CONDITIONAL
+                    ? new AtomicReferenceArray<GlobalTransformers>(1 << conditionalCount) : null;
+        }
+
+        /**
+         * Create the selection for the matching conditional entries.
+         * @param mask The matching conditional entries, numbered across both groups.
+         */
+        GlobalTransformers createSelection(final int mask) {
+            final BitSet[] matches = new BitSet[2];
+            int bit = 0;
+            for(int i=0; i<2; i++) {
+                matches[i] = (BitSet)this.unconditional[i].clone();
+                final BitSet candidates = this.conditional[i];
+                for(int m = candidates.nextSetBit(0); m >= 0; m = candidates.nextSetBit(m + 1)) {
+                    if ( (mask & (1 << bit)) != 0 ) {
+                        matches[i].set(m);
+                    }
+                    bit++;
+                }
+            }
+            return new GlobalTransformers(this.entries, matches[0], matches[1]);
+        }
+    }
+
+    private static final GlobalEntries EMPTY_GLOBAL_ENTRIES = new GlobalEntries(EMPTY_DOUBLE_ENTRY_ARRAY);
+
+    private volatile GlobalEntries cached = EMPTY_GLOBAL_ENTRIES;
 
     /** flag for tracking cache updates. */
     private volatile int currentTrackingCount;
@@ -80,6 +165,7 @@ final class TransformerFactoryServiceTracker extends HashingServiceTrackerCustom
         super.removedService(reference, service);
         if ( isGlobal && getType(reference) == null ) {
             this.context.ungetService(reference);
+            this.notifyListener();
         }
     }
 
@@ -88,13 +174,17 @@ final class TransformerFactoryServiceTracker extends HashingServiceTrackerCustom
      * @return Two arrays of transformer factories
      */
     public TransformerFactoryEntry[][] getGlobalTransformerFactoryEntries() {
+        return this.getGlobalEntries().entries;
+    }
+
+    private GlobalEntries getGlobalEntries() {
         if (this.currentTrackingCount != this.getTrackingCount()) {
             synchronized ( this ) {
                 if (this.currentTrackingCount != this.getTrackingCount()) {
                     final ServiceReference<TransformerFactory>[] refs = this.getServiceReferences();
-                    LOGGER.debug("Found {} service references", refs.length);
+                    LOGGER.debug("Found {} service references", refs == null ? 0 : refs.length);
                     if ( refs == null || refs.length == 0 ) {
-                        this.cached = EMPTY_DOUBLE_ENTRY_ARRAY;
+                        this.cached = EMPTY_GLOBAL_ENTRIES;
                     } else {
                         Arrays.sort(refs);
 
@@ -145,7 +235,7 @@ final class TransformerFactoryServiceTracker extends HashingServiceTrackerCustom
                         if (globalFactories[1].length > 1) {
                             Arrays.sort(globalFactories[1]);
                         }
-                        this.cached = globalFactories;
+                        this.cached = new GlobalEntries(globalFactories);
                     }
                     this.currentTrackingCount = this.getTrackingCount();
                 }
@@ -156,33 +246,76 @@ final class TransformerFactoryServiceTracker extends HashingServiceTrackerCustom
     }
 
     /**
-     * Get all global transformer factories that apply to the current request.
+     * Select all global transformers that apply to the current request.
      * @param context The current processing context.
-     * @return Two arrays containing the transformer factories.
+     * @return The selected pre and post transformers.
      */
-    public TransformerFactory[][] getGlobalTransformerFactories(final ProcessingContext context) {
-        final TransformerFactoryEntry[][] globalFactoryEntries = this.getGlobalTransformerFactoryEntries();
+    public GlobalTransformers selectGlobalTransformers(final ProcessingContext context) {
+        final GlobalEntries globalEntries = this.getGlobalEntries();
         // quick check
-        if ( globalFactoryEntries == EMPTY_DOUBLE_ENTRY_ARRAY ) {
-            LOGGER.debug("No TransformerFactory found");
-            return EMPTY_DOUBLE_FACTORY_ARRAY;
+        if ( globalEntries.unconditionalSelection != null ) {
+            return globalEntries.unconditionalSelection;
+        }
+        if ( globalEntries.selections == null ) {
+            return this.selectUncached(globalEntries, context);
         }
-        final TransformerFactory[][] factories = new TransformerFactory[2][];
+        int mask = 0;
+        int bit = 0;
         for(int i=0; i<2; i++) {
-            if ( globalFactoryEntries[i] == EMPTY_ENTRY_ARRAY ) {
-                LOGGER.debug("No {} TransformerFactory found for context {}", i == 0 ? "pre" : "post", context);
-                factories[i] = EMPTY_FACTORY_ARRAY;
+            final BitSet conditional = globalEntries.conditional[i];
+            if ( !conditional.isEmpty() ) {
+                final BitSet matchingPaths = getMatchingPaths(globalEntries.paths[i], context);
+                for(int m = conditional.nextSetBit(0); m >= 0; m = conditional.nextSetBit(m + 1)) {
+                    if ( (matchingPaths == null || matchingPaths.get(m)) && globalEntries.entries[i][m].match(context, false) ) {
+                        mask |= 1 << bit;
+                    }
+                    bit++;
+                }
+            }
+        }
+        GlobalTransformers selection = globalEntries.selections.get(mask);
+        if ( selection == null ) {
+            selection = globalEntries.createSelection(mask);
+            globalEntries.selections.set(mask, selection);
+        }
+        if ( LOGGER.isDebugEnabled() ) {
+            LOGGER.debug("Found {} pre and {} post transformer factories for context {}",
+                    selection.getCount(GlobalTransformers.PRE), selection.getCount(GlobalTransformers.POST), context);
+        }
+        return selection;
+    }
+
+    /**
+     * Get the positions of the entries matching the resource path of the request.
+     * @return The positions or {@code null} if no entry is restricted to paths.
+     */
+    private static BitSet getMatchingPaths(final PathPrefixIndex paths, final ProcessingContext context) {
+        // walk the path once for all entries
+        return paths.isRestricted() ? paths.match(context.getRequest().getRequestPathInfo().getResourcePath()) : null;
+    }
+
+    /**
+     * Select the global transformers if there are too many conditional entries to cache all selections.
+     */
+    private GlobalTransformers selectUncached(final GlobalEntries globalEntries, final ProcessingContext context) {
+        final BitSet[] matches = new BitSet[2];
+        for(int i=0; i<2; i++) {
+            if ( globalEntries.conditional[i].isEmpty() ) {
+                matches[i] = globalEntries.unconditional[i];
             } else {
-                factories[i] = new TransformerFactory[globalFactoryEntries[i].length];
-                for(int m=0; m<globalFactoryEntries[i].length; m++) {
-                    final TransformerFactoryEntry entry = globalFactoryEntries[i][m];
-                    if ( entry.match(context) ) {
-                        factories[i][m] = entry.factory;
+                matches[i] = (BitSet)globalEntries.unconditional[i].clone();
+                final BitSet matchingPaths = getMatchingPaths(globalEntries.paths[i], context);
+                final BitSet conditional = globalEntries.conditional[i];
+                for(int m = conditional.nextSetBit(0); m >= 0; m = conditional.nextSetBit(m + 1)) {
+                    if ( (matchingPaths == null || matchingPaths.get(m)) && globalEntries.entries[i][m].match(context, false) ) {
+                        matches[i].set(m);
                     }
                 }
-                LOGGER.debug("Found {} Transformer factories {} for context {}", i == 0 ? "pre" : "post", factories[i], context);
+            }
+            if ( LOGGER.isDebugEnabled() ) {
+                LOGGER.debug("Found {} {} transformer factories for context {}", matches[i].cardinality(), i == 0 ? "pre" : "post", context);
             }
         }
-        return factories;
+        return new GlobalTransformers(globalEntries.entries, matches[0], matches[1]);
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,276 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.sling.rewriter.impl.components;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A bounded pipe handing characters from a writing thread over
+ * to a reading thread.
+ *
+ * The characters are kept in a fixed size ring buffer. The writer
+ * copies into the free part of the ring and publishes the written
+ * characters to the reader in batches, once a quarter of the ring
+ * has been filled or the writer is flushed. If the ring is full, the
+ * writer blocks until the reader catches up. The writing thread can
+ * wait for the reader to consume everything published so far with
+ * {@link #awaitIdle()}.
+ *
+ * Only {@link ReentrantLock} is used for blocking, so neither side
+ * pins a carrier thread when running on a virtual thread.
+ */
+class CharPipe {
+
+    private final char[] ring;
+
+    /** Number of written characters after which they are published. */
+    private final int batchSize;
+
+    private final PipeWriter writer = new PipeWriter();
+
+    private final PipeReader reader = new PipeReader();
+
+    private final ReentrantLock pipeLock = new ReentrantLock();
+
+    /** Signalled when characters are published or the writer is closed. */
+    private final Condition readable = pipeLock.newCondition();
+
+    /** Signalled when the reader frees space. */
+    private final Condition writable = pipeLock.newCondition();
+
+    /** Signalled when the reader waits for more characters. */
+    private final Condition idle = pipeLock.newCondition();
+
+    /** Total number of characters published to the reader. */
+    private volatile long published;
+
+    /** Total number of characters consumed by the reader. */
+    private volatile long consumed;
+
+    /** Set once the writer is closed. */
+    private volatile boolean closed;
+
+    /** Set once the reading side is gone. */
+    private volatile boolean aborted;
+
+    /** Whether the reader is waiting for more characters, guarded by the lock. */
+    private boolean readerWaiting;
+
+    /**
+     * Create a new pipe.
+     * @param capacity The number of characters the pipe can hold.
+     */
+    CharPipe(final int capacity) {
+        this.ring = new char[capacity];
+        this.batchSize = Math.max(1, capacity / 4);
+    }
+
+    Writer getWriter() {
+        return this.writer;
+    }
+
+    Reader getReader() {
+        return this.reader;
+    }
+
+    /**
+     * Abort the pipe. Blocked and future writes fail and
+     * the reader reports an error instead of more characters.
+     */
+    void abort() {
+        this.aborted = true;
+        this.pipeLock.lock();
+        try {
+            this.readable.signalAll();
+            this.writable.signalAll();
+            this.idle.signalAll();
+        } finally {
+            this.pipeLock.unlock();
+        }
+    }
+
+    /**
+     * Wait until the reader has consumed all characters published so far
+     * and is asking for more. Characters not yet flushed by the writer
+     * are not taken into account.
+     * @return {@code true} if the reader is idle, {@code false} if the pipe has been aborted.
+     * @throws InterruptedIOException If the thread is interrupted while waiting
+     */
+    boolean awaitIdle() throws InterruptedIOException {
+        this.pipeLock.lock();
+        try {
+            while ( !this.aborted && !(this.readerWaiting && this.consumed == this.published) ) {
+                this.idle.await();
+            }
+        } catch (final InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for the reader.");
+        } finally {
+            this.pipeLock.unlock();
+        }
+        return !this.aborted;
+    }
+
+    private final class PipeWriter extends Writer {
+
+        /** Total number of characters written, including the ones not yet published. */
+        private long written;
+
+        @Override
+        public void write(final char[] cbuf, int off, int len) throws IOException {
+            if ( closed ) {
+                throw new IOException("Writer is closed.");
+            }
+            while ( len > 0 ) {
+                if ( aborted ) {
+                    throw new IOException("Pipe has been closed by the reader.");
+                }
+                final int free = ring.length - (int)(this.written - consumed);
+                if ( free == 0 ) {
+                    this.publish();
+                    this.awaitSpace();
+                    continue;
+                }
+                final int index = (int)(this.written % ring.length);
+                final int n = Math.min(len, Math.min(free, ring.length - index));
+                System.arraycopy(cbuf, off, ring, index, n);
+                this.written += n;
+                off += n;
+                len -= n;
+                if ( this.written - published >= batchSize ) {
+                    this.publish();
+                }
+            }
+        }
+
+        private void publish() {
+            if ( this.written != published ) {
+                pipeLock.lock();
+                try {
+                    published = this.written;
+                    readable.signal();
+                } finally {
+                    pipeLock.unlock();
+                }
+            }
+        }
+
+        private void awaitSpace() throws IOException {
+            pipeLock.lock();
+            try {
+                while ( !aborted && this.written - consumed == ring.length ) {
+                    writable.await();
+                }
+            } catch (final InterruptedException ie) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while writing to pipe.");
+            } finally {
+                pipeLock.unlock();
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            if ( aborted ) {
+                throw new IOException("Pipe has been closed by the reader.");
+            }
+            this.publish();
+        }
+
+        @Override
+        public void close() throws IOException {
+            if ( !closed ) {
+                this.flush();
+                pipeLock.lock();
+                try {
+                    closed = true;
+                    readable.signal();
+                } finally {
+                    pipeLock.unlock();
+                }
+            }
+        }
+    }
+
+    private final class PipeReader extends Reader {
+
+        @Override
+        public int read(final char[] cbuf, final int off, final int len) throws IOException {
+            if ( len == 0 ) {
+                return 0;
+            }
+            if ( !this.awaitCharacters() ) {
+                return -1;
+            }
+            final long position = consumed;
+            final int index = (int)(position % ring.length);
+            final int n = (int)Math.min(len, Math.min(published - position, ring.length - index));
+            System.arraycopy(ring, index, cbuf, off, n);
+            pipeLock.lock();
+            try {
+                consumed = position + n;
+                writable.signal();
+            } finally {
+                pipeLock.unlock();
+            }
+            return n;
+        }
+
+        /**
+         * Wait for published characters.
+         * @return {@code false} if the writer is closed and everything has been read.
+         */
+        private boolean awaitCharacters() throws IOException {
+            if ( !aborted && published > consumed ) {
+                return true;
+            }
+            pipeLock.lock();
+            try {
+                while ( !aborted && published == consumed && !closed ) {
+                    readerWaiting = true;
+                    idle.signalAll();
+                    readable.await();
+                }
+            } catch (final InterruptedException ie) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while reading from pipe.");
+            } finally {
+                readerWaiting = false;
+                pipeLock.unlock();
+            }
+            if ( aborted ) {
+                throw new IOException("Pipe has been aborted.");
+            }
+            return published > consumed;
+        }
+
+        @Override
+        public boolean ready() {
+            return published > consumed;
+        }
+
+        @Override
+        public void close() {
+            abort();
+        }
+    }
+}
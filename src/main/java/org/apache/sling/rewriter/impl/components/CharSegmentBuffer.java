@@ -0,0 +1,182 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.sling.rewriter.impl.components;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A writer collecting the characters in a list of fixed size
+ * segments taken from a {@link CharSegmentPool}.
+ *
+ * In contrast to a growing array, the buffer never copies already
+ * written characters. The content is read back through {@link #getReader()}
+ * and the segments are handed back to the pool with {@link #release()}.
+ */
+class CharSegmentBuffer extends Writer {
+
+    private final CharSegmentPool pool;
+
+    private final List<char[]> segments = new ArrayList<>();
+
+    /** The segment currently written to. */
+    private char[] current;
+
+    /** Number of chars used in the current segment. */
+    private int pos;
+
+    /** Total number of chars in the buffer. */
+    private long length;
+
+    CharSegmentBuffer(final CharSegmentPool pool) {
+        this.pool = pool;
+    }
+
+    /**
+     * The number of characters in this buffer.
+     */
+    long length() {
+        return this.length;
+    }
+
+    @Override
+    public void write(final int c) {
+        if ( this.current == null || this.pos == this.current.length ) {
+            this.nextSegment();
+        }
+        this.current[this.pos++] = (char)c;
+        this.length++;
+    }
+
+    @Override
+    public void write(final char[] cbuf, int off, int len) {
+        this.length += len;
+        while ( len > 0 ) {
+            if ( this.current == null || this.pos == this.current.length ) {
+                this.nextSegment();
+            }
+            final int n = Math.min(len, this.current.length - this.pos);
+            System.arraycopy(cbuf, off, this.current, this.pos, n);
+            this.pos += n;
+            off += n;
+            len -= n;
+        }
+    }
+
+    @Override
+    public void write(final String str, int off, int len) {
+        this.length += len;
+        while ( len > 0 ) {
+            if ( this.current == null || this.pos == this.current.length ) {
+                this.nextSegment();
+            }
+            final int n = Math.min(len, this.current.length - this.pos);
+            str.getChars(off, off + n, this.current, this.pos);
+            this.pos += n;
+            off += n;
+            len -= n;
+        }
+    }
+
+    private void nextSegment() {
+        this.current = this.pool.acquire();
+        this.segments.add(this.current);
+        this.pos = 0;
+    }
+
+    /**
+     * Get a reader over the buffered characters. The reader must
+     * not be used after this buffer has been modified or released.
+     */
+    Reader getReader() {
+        return new Reader() {
+
+            private int segment;
+
+            private int offset;
+
+            @Override
+            public int read(final char[] cbuf, final int off, final int len) {
+                if ( len == 0 ) {
+                    return 0;
+                }
+                final int last = segments.size() - 1;
+                while ( segment <= last ) {
+                    final int end = (segment == last ? pos : segments.get(segment).length);
+                    if ( offset < end ) {
+                        final int n = Math.min(len, end - offset);
+                        System.arraycopy(segments.get(segment), offset, cbuf, off, n);
+                        offset += n;
+                        return n;
+                    }
+                    segment++;
+                    offset = 0;
+                }
+                return -1;
+            }
+
+            @Override
+            public boolean ready() {
+                final int last = segments.size() - 1;
+                return segment < last || (segment == last && offset < pos);
+            }
+
+            @Override
+            public void close() {
+                // nothing to do
+            }
+        };
+    }
+
+    /**
+     * Write the buffered characters to the given writer.
+     * @param out The writer
+     * @throws IOException If writing fails
+     */
+    void writeTo(final Writer out) throws IOException {
+        final int last = this.segments.size() - 1;
+        for(int i=0; i<=last; i++) {
+            out.write(this.segments.get(i), 0, i == last ? this.pos : this.segments.get(i).length);
+        }
+    }
+
+    /**
+     * Return all segments to the pool and clear the buffer.
+     */
+    void release() {
+        for(final char[] segment : this.segments) {
+            this.pool.release(segment);
+        }
+        this.segments.clear();
+        this.current = null;
+        this.pos = 0;
+        this.length = 0;
+    }
+
+    @Override
+    public void flush() {
+        // nothing to do
+    }
+
+    @Override
+    public void close() {
+        // nothing to do
+    }
+}
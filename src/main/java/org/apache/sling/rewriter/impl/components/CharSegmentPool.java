@@ -0,0 +1,63 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.sling.rewriter.impl.components;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * A bounded pool of fixed size char arrays.
+ *
+ * If the pool is empty, a new segment is allocated. Segments
+ * returned to a full pool are left to the garbage collector.
+ * A pool with a maximum size of zero does not keep any segments.
+ */
+class CharSegmentPool {
+
+    private final int segmentSize;
+
+    private final BlockingQueue<char[]> segments;
+
+    /**
+     * Create a new pool.
+     * @param segmentSize The size of each segment.
+     * @param maxSegments The maximum number of segments kept in the pool.
+     */
+    CharSegmentPool(final int segmentSize, final int maxSegments) {
+        this.segmentSize = segmentSize;
+        this.segments = (maxSegments > 0 ? new ArrayBlockingQueue<char[]>(maxSegments) : null);
+    }
+
+    /**
+     * Get a segment from the pool.
+     * @return A segment, never {@code null}
+     */
+    char[] acquire() {
+        final char[] segment = (this.segments != null ? this.segments.poll() : null);
+        return segment != null ? segment : new char[this.segmentSize];
+    }
+
+    /**
+     * Return a segment to the pool.
+     * @param segment The segment
+     */
+    void release(final char[] segment) {
+        if ( this.segments != null && segment.length == this.segmentSize ) {
+            this.segments.offer(segment);
+        }
+    }
+}
@@ -0,0 +1,162 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.sling.rewriter.impl.components;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The element and attribute rules of the HTML5 serializers.
+ *
+ * Void elements are written without an end tag. Obsolete attributes are
+ * dropped, the built in rules drop {@code shape} from {@code a},
+ * {@code frameborder} and {@code scrolling} from {@code iframe} and
+ * {@code clear} from {@code br}. Further rules can be configured as
+ * {@code element/attribute}, with {@code *} as element for all elements.
+ *
+ * The attributes dropped for an element are looked up once per element,
+ * the built in rules are compiled into switch statements.
+ */
+final class Html5Rules {
+
+    /** The built in rules. */
+    static final Html5Rules DEFAULT = new Html5Rules(null, null);
+
+    private static final String[] A_DROPS = new String[] {"shape"};
+
+    private static final String[] IFRAME_DROPS = new String[] {"frameborder", "scrolling"};
+
+    private static final String[] BR_DROPS = new String[] {"clear"};
+
+    /** The dropped attributes by element, {@code null} for the built in rules. */
+    private final Map<String, String[]> drops;
+
+    /** The attributes dropped for all other elements, might be {@code null}. */
+    private final String[] globalDrops;
+
+    private Html5Rules(final Map<String, String[]> drops, final String[] globalDrops) {
+        this.drops = drops;
+        this.globalDrops = globalDrops;
+    }
+
+    /**
+     * Create the rules.
+     * @param configured Additional rules as {@code element/attribute}, might be {@code null}.
+     * @return The rules
+     * @throws IllegalArgumentException If a rule is invalid
+     */
+    static Html5Rules create(final String[] configured) {
+        if (configured == null || configured.length == 0) {
+            return DEFAULT;
+        }
+        final Map<String, Set<String>> rules = new HashMap<>();
+        rules.put("a", new LinkedHashSet<>(Arrays.asList(A_DROPS)));
+        rules.put("iframe", new LinkedHashSet<>(Arrays.asList(IFRAME_DROPS)));
+        rules.put("br", new LinkedHashSet<>(Arrays.asList(BR_DROPS)));
+        final Set<String> global = new LinkedHashSet<>();
+        for (final String rule : configured) {
+            final int pos = rule == null ? -1 : rule.indexOf('/');
+            if (pos < 1 || pos == rule.length() - 1) {
+                throw new IllegalArgumentException("Invalid attribute rule '" + rule + "', expected element/attribute");
+            }
+            final String element = rule.substring(0, pos).trim();
+            final String attribute = rule.substring(pos + 1).trim();
+            if ("*".equals(element)) {
+                global.add(attribute);
+            } else {
+                Set<String> attributes = rules.get(element);
+                if (attributes == null) {
+                    attributes = new LinkedHashSet<>();
+                    rules.put(element, attributes);
+                }
+                attributes.add(attribute);
+            }
+        }
+        final Map<String, String[]> drops = new HashMap<>();
+        for (final Map.Entry<String, Set<String>> entry : rules.entrySet()) {
+            entry.getValue().addAll(global);
+            drops.put(entry.getKey(), entry.getValue().toArray(new String[entry.getValue().size()]));
+        }
+        return new Html5Rules(drops, global.isEmpty() ? null : global.toArray(new String[global.size()]));
+    }
+
+    /**
+     * Check whether the element has no end tag.
+     */
+    static boolean isVoidElement(final String localName) {
+        switch (localName) {
+            case "area":
+            case "base":
+            case "br":
+            case "col":
+            case "embed":
+            case "hr":
+            case "img":
+            case "input":
+            case "keygen":
+            case "link":
+            case "meta":
+            case "param":
+            case "source":
+            case "track":
+            case "wbr":
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Get the attributes dropped for the element.
+     * @return The attribute names or {@code null}
+     */
+    String[] getDroppedAttributes(final String localName) {
+        if (this.drops == null) {
+            switch (localName) {
+                case "a":
+                    return A_DROPS;
+                case "iframe":
+                    return IFRAME_DROPS;
+                case "br":
+                    return BR_DROPS;
+                default:
+                    return null;
+            }
+        }
+        final String[] dropped = this.drops.get(localName);
+        return dropped != null ? dropped : this.globalDrops;
+    }
+
+    /**
+     * Check whether the attribute is dropped.
+     * @param dropped The attributes returned by {@link #getDroppedAttributes(String)}
+     * @param name The attribute name
+     */
+    static boolean isDropped(final String[] dropped, final String name) {
+        if (dropped != null) {
+            for (final String attribute : dropped) {
+                if (attribute.equals(name)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+}
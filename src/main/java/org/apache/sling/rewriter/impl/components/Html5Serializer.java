@@ -18,22 +18,19 @@ package org.apache.sling.rewriter.impl.components;
 
 import java.io.IOException;
 import java.io.PrintWriter;
-import java.util.Arrays;
-import java.util.HashSet;
-import java.util.Set;
 
-import org.apache.commons.text.StringEscapeUtils;
 import org.apache.sling.rewriter.ProcessingComponentConfiguration;
 import org.apache.sling.rewriter.ProcessingContext;
 import org.apache.sling.rewriter.Serializer;
 import org.xml.sax.Attributes;
 import org.xml.sax.Locator;
 import org.xml.sax.SAXException;
+import org.xml.sax.ext.LexicalHandler;
 
 /**
  * Serializer for writing HTML5 compliant markup
  */
-public class Html5Serializer implements Serializer {
+public class Html5Serializer implements Serializer, LexicalHandler {
 
     private static final int CHAR_EQ = '=';
 
@@ -47,13 +44,15 @@ public class Html5Serializer implements Serializer {
 
     private static final String DOCTYPE = "<!DOCTYPE html>";
 
-    private static final Set<String> emptyTags = new HashSet<>();
-    static {
-        emptyTags.addAll(Arrays.asList("area", "base", "br", "col", "embed", "hr", "img", "input", "keygen", "link",
-                "meta", "param", "source", "track", "wbr"));
-    }
     private PrintWriter writer;
+    private HtmlEscaper escaper = HtmlEscaper.HTML4;
+    private Html5Rules rules = Html5Rules.DEFAULT;
     private boolean inScript = false;
+    private boolean minify = false;
+    /** The number of open elements preserving whitespace, in minify mode. */
+    private int preserveDepth = 0;
+    /** Whether the last character written in minify mode was collapsed whitespace. */
+    private boolean lastWasSpace = false;
 
     @Override
     public void characters(char[] buffer, int offset, int length) throws SAXException {
@@ -64,14 +63,77 @@ public class Html5Serializer implements Serializer {
                 throw new SAXException("Offset / length out of bounds");
             }
             if (inScript) {
-                writer.write(new String(Arrays.copyOfRange(buffer, offset, offset + length)));
+                writer.write(buffer, offset, length);
+            } else if (minify && preserveDepth == 0) {
+                writeCollapsed(buffer, offset, length);
             } else {
-                writer.write(
-                        StringEscapeUtils.escapeHtml4(new String(Arrays.copyOfRange(buffer, offset, offset + length))));
+                escaper.escapeText(writer, buffer, offset, length);
             }
         }
     }
 
+    private void writeCollapsed(char[] buffer, int offset, int length) {
+        final int end = offset + length;
+        int start = offset;
+        for (int i = offset; i < end; i++) {
+            if (HtmlMinifier.isWhitespace(buffer[i])) {
+                if (i > start) {
+                    escaper.escapeText(writer, buffer, start, i - start);
+                    lastWasSpace = false;
+                }
+                if (!lastWasSpace) {
+                    writer.write(CHAR_SP);
+                    lastWasSpace = true;
+                }
+                start = i + 1;
+            }
+        }
+        if (end > start) {
+            escaper.escapeText(writer, buffer, start, end - start);
+            lastWasSpace = false;
+        }
+    }
+
+    @Override
+    public void comment(char[] ch, int start, int length) throws SAXException {
+        // comments are dropped, except for conditional comments in minify mode
+        if (minify && HtmlMinifier.isConditionalComment(ch, start, length)) {
+            writer.write("<!--");
+            writer.write(ch, start, length);
+            writer.write("-->");
+        }
+    }
+
+    @Override
+    public void startDTD(String name, String publicId, String systemId) throws SAXException {
+        // Nothing required
+    }
+
+    @Override
+    public void endDTD() throws SAXException {
+        // Nothing required
+    }
+
+    @Override
+    public void startEntity(String name) throws SAXException {
+        // Nothing required
+    }
+
+    @Override
+    public void endEntity(String name) throws SAXException {
+        // Nothing required
+    }
+
+    @Override
+    public void startCDATA() throws SAXException {
+        // Nothing required
+    }
+
+    @Override
+    public void endCDATA() throws SAXException {
+        // Nothing required
+    }
+
     @Override
     public void dispose() {
         // Nothing required
@@ -84,11 +146,15 @@ public class Html5Serializer implements Serializer {
 
     @Override
     public void endElement(String uri, String localName, String qName) throws SAXException {
-        if (!emptyTags.contains(localName)) {
+        if (!Html5Rules.isVoidElement(localName)) {
             writer.write("</");
             writer.write(localName);
             writer.write(CHAR_GT);
         }
+        if (minify && preserveDepth > 0 && HtmlMinifier.preservesWhitespace(localName)) {
+            preserveDepth--;
+        }
+        lastWasSpace = false;
         inScript = false;
     }
 
@@ -109,6 +175,22 @@ public class Html5Serializer implements Serializer {
         } else {
             writer = context.getWriter();
         }
+        final String escaping = config.getConfiguration().get(Html5SerializerFactory.PROPERTY_ESCAPING,
+                Html5SerializerFactory.ESCAPING_HTML4);
+        if (Html5SerializerFactory.ESCAPING_MINIMAL.equals(escaping)) {
+            escaper = HtmlEscaper.minimal(context.getResponse() == null ? null : context.getResponse().getCharacterEncoding());
+        } else {
+            escaper = HtmlEscaper.HTML4;
+        }
+        try {
+            rules = Html5Rules.create(config.getConfiguration().get(Html5SerializerFactory.PROPERTY_DROP_ATTRIBUTES,
+                    String[].class));
+        } catch (final IllegalArgumentException iae) {
+            throw new IOException(iae.getMessage());
+        }
+        minify = config.getConfiguration().get(Html5SerializerFactory.PROPERTY_MINIFY, false);
+        preserveDepth = 0;
+        lastWasSpace = false;
     }
 
     @Override
@@ -134,27 +216,43 @@ public class Html5Serializer implements Serializer {
     @Override
     public void startElement(String uri, String localName, String qName, Attributes atts) throws SAXException {
         boolean endSlash = false;
+        boolean lastUnquoted = false;
         writer.write(CHAR_LT);
         writer.write(localName);
 
+        final String[] dropped = rules.getDroppedAttributes(localName);
         for (int i = 0; i < atts.getLength(); i++) {
             if ("endSlash".equals(atts.getQName(i))) {
                 endSlash = true;
+                continue;
             }
             String value = atts.getValue(i);
-            if (shouldContinue(localName, atts, i)) {
+            if (value == null || Html5Rules.isDropped(dropped, atts.getLocalName(i))) {
                 continue;
             }
             writer.write(CHAR_SP);
             writer.write(atts.getLocalName(i));
 
+            lastUnquoted = false;
+            if (minify && value.isEmpty()) {
+                continue;
+            }
             writer.write(CHAR_EQ);
-            writer.write(CHAR_QT);
-            writer.write(StringEscapeUtils.escapeHtml4(value));
-            writer.write(CHAR_QT);
+            if (minify && HtmlMinifier.canOmitQuotes(value)) {
+                escaper.escapeAttribute(writer, value);
+                lastUnquoted = true;
+            } else {
+                writer.write(CHAR_QT);
+                escaper.escapeAttribute(writer, value);
+                writer.write(CHAR_QT);
+            }
         }
 
         if (endSlash) {
+            if (lastUnquoted) {
+                // otherwise the slash would become part of the value
+                writer.write(CHAR_SP);
+            }
             writer.write("/");
         }
         writer.write(CHAR_GT);
@@ -163,23 +261,10 @@ public class Html5Serializer implements Serializer {
         } else {
             inScript = false;
         }
-    }
-
-    private boolean shouldContinue(String localName, Attributes atts, int i) {
-        if ("endSlash".equals(atts.getQName(i))) {
-            return true;
-        }
-        if ("a".equals(localName) && "shape".equals(atts.getLocalName(i))) {
-            return true;
-        }
-        if ("iframe".equals(localName)
-                && ("frameborder".equals(atts.getLocalName(i)) || "scrolling".equals(atts.getLocalName(i)))) {
-            return true;
-        }
-        if ("br".equals(localName) && ("clear".equals(atts.getLocalName(i)))) {
-            return true;
+        if (minify && HtmlMinifier.preservesWhitespace(localName)) {
+            preserveDepth++;
         }
-        return atts.getValue(i) == null;
+        lastWasSpace = false;
     }
 
     @Override
@@ -23,11 +23,45 @@ import org.osgi.service.component.annotations.Component;
 
 /**
  * This sax serializer serializes HTML5 Compliant Markup
+ *
+ * By default text and attribute values are escaped like
+ * {@code StringEscapeUtils.escapeHtml4}, turning all characters with a
+ * named entity into that entity. If the serializer configuration sets
+ * the property {@link #PROPERTY_ESCAPING} to {@link #ESCAPING_MINIMAL},
+ * only {@code &}, {@code <}, {@code >} and, in attribute values,
+ * {@code "} are escaped. Characters which can't be represented in the
+ * charset of the response are written as numeric character references.
+ *
+ * Obsolete attributes are dropped from the output. Besides the built in
+ * rules, further attributes to drop can be configured with the property
+ * {@link #PROPERTY_DROP_ATTRIBUTES} as {@code element/attribute}, with
+ * {@code *} as element for all elements.
+ *
+ * If the property {@link #PROPERTY_MINIFY} is set to {@code true}, runs of
+ * whitespace are collapsed into a single space outside of {@code pre},
+ * {@code textarea}, {@code script} and {@code style} elements, quotes
+ * around attribute values are omitted where possible and conditional
+ * comments are kept. All other comments are always dropped.
  */
 @Component(service = SerializerFactory.class, property = { Constants.SERVICE_VENDOR + "=The Apache Software Foundation",
         "pipeline.type=html5-serializer" })
 public class Html5SerializerFactory implements SerializerFactory {
 
+    /** Configuration property for the escaping policy. */
+    public static final String PROPERTY_ESCAPING = "escaping";
+
+    /** Escaping policy using the named entities of HTML 4, the default. */
+    public static final String ESCAPING_HTML4 = "html4";
+
+    /** Escaping policy only escaping the markup characters. */
+    public static final String ESCAPING_MINIMAL = "minimal";
+
+    /** Configuration property for additional attributes to drop, as {@code element/attribute}. */
+    public static final String PROPERTY_DROP_ATTRIBUTES = "dropAttributes";
+
+    /** Configuration property enabling the minify mode. */
+    public static final String PROPERTY_MINIFY = "minify";
+
     /**
      * @see org.apache.sling.rewriter.SerializerFactory#createSerializer()
      */
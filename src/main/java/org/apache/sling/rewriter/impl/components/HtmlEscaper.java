@@ -0,0 +1,223 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.sling.rewriter.impl.components;
+
+import java.io.PrintWriter;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+
+import org.apache.commons.text.translate.EntityArrays;
+
+/**
+ * Escapes text for HTML output while writing it.
+ *
+ * The {@link #HTML4} escaper gives the same result as
+ * {@link org.apache.commons.text.StringEscapeUtils#escapeHtml4(String)}.
+ * A {@link #minimal(String) minimal} escaper only escapes the markup
+ * characters and writes all other characters as is, unless the charset of
+ * the response can't represent them. These are written as numeric
+ * character references.
+ *
+ * The text is scanned once, runs of characters which don't need escaping
+ * are written to the output directly from the source and entities are only
+ * written where required, without creating intermediate strings.
+ */
+final class HtmlEscaper {
+
+    /** Escapes like {@code escapeHtml4}. */
+    static final HtmlEscaper HTML4;
+
+    /** Minimal escaping for a charset representing all characters. */
+    private static final HtmlEscaper MINIMAL_UNICODE;
+
+    static {
+        final String[] html4 = createEntities(EntityArrays.BASIC_ESCAPE,
+                EntityArrays.ISO8859_1_ESCAPE,
+                EntityArrays.HTML40_EXTENDED_ESCAPE);
+        HTML4 = new HtmlEscaper(html4, html4, null);
+
+        final String[] text = new String['>' + 1];
+        text['&'] = "&amp;";
+        text['<'] = "&lt;";
+        text['>'] = "&gt;";
+        final String[] attribute = text.clone();
+        attribute['"'] = "&quot;";
+        MINIMAL_UNICODE = new HtmlEscaper(text, attribute, null);
+    }
+
+    @SafeVarargs
+    private static String[] createEntities(final Map<CharSequence, CharSequence>... maps) {
+        int max = 0;
+        for(final Map<CharSequence, CharSequence> map : maps) {
+            for(final CharSequence key : map.keySet()) {
+                max = Math.max(max, key.charAt(0));
+            }
+        }
+        final String[] entities = new String[max + 1];
+        for(final Map<CharSequence, CharSequence> map : maps) {
+            for(final Map.Entry<CharSequence, CharSequence> entry : map.entrySet()) {
+                entities[entry.getKey().charAt(0)] = entry.getValue().toString();
+            }
+        }
+        return entities;
+    }
+
+    /**
+     * Get a minimal escaper for the charset.
+     * @param charsetName The charset of the output, {@code null} for the servlet default ISO-8859-1
+     * @return The escaper
+     */
+    static HtmlEscaper minimal(final String charsetName) {
+        Charset charset;
+        try {
+            charset = charsetName == null ? StandardCharsets.ISO_8859_1 : Charset.forName(charsetName);
+        } catch (final IllegalArgumentException iae) {
+            charset = StandardCharsets.ISO_8859_1;
+        }
+        if ( charset.name().startsWith("UTF-") || !charset.canEncode() ) {
+            return MINIMAL_UNICODE;
+        }
+        return new HtmlEscaper(MINIMAL_UNICODE.textEntities, MINIMAL_UNICODE.attributeEntities, charset.newEncoder());
+    }
+
+    /** The entities by character in text, {@code null} for characters written as is. */
+    private final String[] textEntities;
+
+    /** The entities by character in attribute values. */
+    private final String[] attributeEntities;
+
+    /** The encoder to check non ASCII characters, {@code null} if all characters can be represented. */
+    private final CharsetEncoder encoder;
+
+    private HtmlEscaper(final String[] textEntities, final String[] attributeEntities, final CharsetEncoder encoder) {
+        this.textEntities = textEntities;
+        this.attributeEntities = attributeEntities;
+        this.encoder = encoder;
+    }
+
+    /**
+     * The entities by character in text, {@code null} for characters written as is.
+     */
+    String[] getTextEntities() {
+        return this.textEntities;
+    }
+
+    /**
+     * The entities by character in attribute values, {@code null} for characters written as is.
+     */
+    String[] getAttributeEntities() {
+        return this.attributeEntities;
+    }
+
+    /**
+     * Write the escaped text.
+     * @param out The output
+     * @param buffer The characters
+     * @param offset The offset of the first character
+     * @param length The number of characters
+     */
+    void escapeText(final PrintWriter out, final char[] buffer, final int offset, final int length) {
+        final String[] entities = this.textEntities;
+        final int end = offset + length;
+        int start = offset;
+        for(int i=offset; i<end; i++) {
+            final char c = buffer[i];
+            if ( c < entities.length && entities[c] != null ) {
+                if ( i > start ) {
+                    out.write(buffer, start, i - start);
+                }
+                out.write(entities[c]);
+                start = i + 1;
+            } else if ( c > 127 && this.encoder != null ) {
+                final int count = this.unmappable(c, i + 1 < end ? buffer[i + 1] : 0);
+                if ( count > 0 ) {
+                    if ( i > start ) {
+                        out.write(buffer, start, i - start);
+                    }
+                    writeReference(out, count == 1 ? c : Character.toCodePoint(c, buffer[i + 1]));
+                    i += count - 1;
+                    start = i + 1;
+                }
+            }
+        }
+        if ( end > start ) {
+            out.write(buffer, start, end - start);
+        }
+    }
+
+    /**
+     * Write the escaped attribute value.
+     * @param out The output
+     * @param value The value
+     */
+    void escapeAttribute(final PrintWriter out, final String value) {
+        final String[] entities = this.attributeEntities;
+        final int end = value.length();
+        int start = 0;
+        for(int i=0; i<end; i++) {
+            final char c = value.charAt(i);
+            if ( c < entities.length && entities[c] != null ) {
+                if ( i > start ) {
+                    out.write(value, start, i - start);
+                }
+                out.write(entities[c]);
+                start = i + 1;
+            } else if ( c > 127 && this.encoder != null ) {
+                final int count = this.unmappable(c, i + 1 < end ? value.charAt(i + 1) : 0);
+                if ( count > 0 ) {
+                    if ( i > start ) {
+                        out.write(value, start, i - start);
+                    }
+                    writeReference(out, count == 1 ? c : Character.toCodePoint(c, value.charAt(i + 1)));
+                    i += count - 1;
+                    start = i + 1;
+                }
+            }
+        }
+        if ( end > start ) {
+            out.write(value, start, end - start);
+        }
+    }
+
+    /**
+     * Check whether a character can't be represented in the charset.
+     * @param c The character
+     * @param next The following character or {@code 0}
+     * @return The number of characters to replace by a reference, zero if the character can be written.
+     */
+    private int unmappable(final char c, final char next) {
+        if ( Character.isHighSurrogate(c) ) {
+            if ( Character.isLowSurrogate(next) ) {
+                return this.encoder.canEncode(new String(new char[] {c, next})) ? 0 : 2;
+            }
+            // lone surrogates are written as is
+            return 0;
+        }
+        if ( Character.isLowSurrogate(c) ) {
+            return 0;
+        }
+        return this.encoder.canEncode(c) ? 0 : 1;
+    }
+
+    private static void writeReference(final PrintWriter out, final int codePoint) {
+        out.write("&#");
+        out.write(Integer.toString(codePoint));
+        out.write(';');
+    }
+}
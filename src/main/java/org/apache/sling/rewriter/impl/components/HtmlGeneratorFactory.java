@@ -16,18 +16,34 @@
  */
 package org.apache.sling.rewriter.impl.components;
 
-import java.io.ByteArrayInputStream;
+import java.io.File;
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.io.PrintWriter;
-import java.io.StringWriter;
+import java.io.Writer;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.apache.sling.commons.html.HtmlParser;
 import org.apache.sling.rewriter.Generator;
 import org.apache.sling.rewriter.GeneratorFactory;
 import org.apache.sling.rewriter.ProcessingComponentConfiguration;
 import org.apache.sling.rewriter.ProcessingContext;
+import org.apache.sling.rewriter.impl.PassThroughGenerator;
+import org.osgi.framework.BundleContext;
 import org.osgi.framework.Constants;
+import org.osgi.service.component.annotations.Activate;
 import org.osgi.service.component.annotations.Component;
+import org.osgi.service.component.annotations.Deactivate;
 import org.osgi.service.component.annotations.Reference;
 import org.xml.sax.ContentHandler;
 import org.xml.sax.SAXException;
@@ -36,6 +52,28 @@ import org.xml.sax.SAXException;
  * On the fly HTML parser which can be used as the
  * starting point for html pipelines.
  *
+ * By default the output is buffered and parsed once the
+ * request processing is finished. If the generator configuration
+ * sets the property {@link #PROPERTY_STREAMING} to {@code true}, the
+ * output is parsed in a separate thread while it is written. The output
+ * is handed over through a bounded ring buffer, a script writing faster
+ * than the parser can process blocks until space is available again.
+ * Virtual threads are used for parsing if the JVM supports them. Only
+ * the parser runs in that thread: the SAX events are queued and replayed
+ * through the transformers and the serializer on the request thread
+ * whenever output is written or flushed and once the generator is
+ * finished. The pipeline therefore never uses the request, its resource
+ * resolver or the response from another thread.
+ *
+ * With {@link #PROPERTY_FLUSH} set to {@code true}, which implies
+ * streaming, flushing the writer waits until the parser has processed
+ * all output written so far, replays its events and then sends an empty
+ * characters event through the pipeline. Serializers treat this event as a request to
+ * flush their output, so early flushes of a script reach the client.
+ *
+ * Buffered output exceeding the number of characters configured with
+ * {@link #PROPERTY_SPILL_THRESHOLD} is moved into a temporary file
+ * in the data area of the bundle instead of being kept in memory.
  */
 @Component(service = GeneratorFactory.class,
     property = {
@@ -44,28 +82,139 @@ import org.xml.sax.SAXException;
     })
 public class HtmlGeneratorFactory implements GeneratorFactory {
 
+    /** Configuration property enabling the streaming mode. */
+    public static final String PROPERTY_STREAMING = "streaming";
+
+    /** Configuration property enabling flushing of the pipeline, implies streaming. */
+    public static final String PROPERTY_FLUSH = "flush";
+
+    /** Configuration property for the number of buffered characters after which the output is spilled to disk. */
+    public static final String PROPERTY_SPILL_THRESHOLD = "spillThreshold";
+
+    /** Number of characters the pipe to the parser holds in streaming mode. */
+    private static final int STREAMING_BUFFER_SIZE = 32768;
+
+    /** Number of seconds disposing a generator waits for its parser to stop. */
+    private static final long PARSER_STOP_TIMEOUT = 10;
+
+    /** Prefix for the names of the parser threads. */
+    private static final String THREAD_NAME = "Apache Sling Rewriter HTML Parser #";
+
+    /** Size of the segments buffering the output. */
+    static final int SEGMENT_SIZE = 8192;
+
+    /** Maximum number of unused segments kept for reuse. */
+    private static final int MAX_POOLED_SEGMENTS = 512;
+
     @Reference
     private HtmlParser htmlParser;
 
+    /** The executor running the parser in streaming mode. */
+    private volatile ExecutorService executor;
+
+    /** The pool of segments for buffering the output. */
+    private final CharSegmentPool segmentPool = new CharSegmentPool(SEGMENT_SIZE, MAX_POOLED_SEGMENTS);
+
+    /** The directory for spilled output, might be {@code null}. */
+    private volatile File spillDirectory;
+
+    @Activate
+    protected void activate(final BundleContext ctx) {
+        this.spillDirectory = ctx.getDataFile("spill");
+        ExecutorService es = createVirtualThreadExecutor();
+        if ( es == null ) {
+            es = Executors.newCachedThreadPool(new ThreadFactory() {
+
+                private final AtomicInteger counter = new AtomicInteger();
+
+                @Override
+                public Thread newThread(final Runnable r) {
+                    final Thread t = new Thread(r, THREAD_NAME + counter.incrementAndGet());
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+        }
+        this.executor = es;
+    }
+
+    /**
+     * Create an executor starting a new virtual thread for each parser.
+     * Virtual threads are only available with Java 21 and up, therefore
+     * the API is looked up reflectively.
+     * @return The executor or {@code null} if virtual threads are not supported.
+     */
+    private static ExecutorService createVirtualThreadExecutor() {
+        try {
+            final Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            builder = builderClass.getMethod("name", String.class, long.class).invoke(builder, THREAD_NAME, 1L);
+            final ThreadFactory factory = (ThreadFactory)builderClass.getMethod("factory").invoke(builder);
+            return (ExecutorService)Executors.class.getMethod("newThreadPerTaskExecutor", ThreadFactory.class)
+                    .invoke(null, factory);
+        } catch (final ReflectiveOperationException | RuntimeException e) {
+            return null;
+        }
+    }
+
+    @Deactivate
+    protected void deactivate() {
+        final ExecutorService es = this.executor;
+        this.executor = null;
+        if ( es != null ) {
+            es.shutdownNow();
+        }
+    }
+
     /**
      * @see org.apache.sling.rewriter.GeneratorFactory#createGenerator()
      */
     @Override
     public Generator createGenerator() {
-        return new HtmlGenerator(htmlParser);
+        return new HtmlGenerator(htmlParser, this.executor, this.segmentPool, this.spillDirectory);
     }
 
-    public static final class HtmlGenerator implements Generator {
+    public static final class HtmlGenerator implements Generator, PassThroughGenerator {
 
-        private final StringWriter writer;
+        /** Empty characters event used to flush the pipeline. */
+        private static final char[] FLUSH_CHARS = new char[0];
+
+        private final OutputBuffer writer;
 
         private final HtmlParser htmlParser;
 
+        private final ExecutorService executor;
+
         private ContentHandler contentHandler;
 
+        /** The pipe to the parser, only set in streaming mode. */
+        private CharPipe pipe;
+
+        /** The running parser, only set in streaming mode once output has been written. */
+        private Future<Void> parserResult;
+
+        /** The events of the running parser, replayed on the request thread. */
+        private SaxEventQueue events;
+
+        /** The failure of the pipeline while replaying events, if any. */
+        private SAXException replayError;
+
+        /** Whether flushing the writer flushes the pipeline. */
+        private boolean flushPipeline;
+
         public HtmlGenerator(final HtmlParser parser) {
+            this(parser, null);
+        }
+
+        public HtmlGenerator(final HtmlParser parser, final ExecutorService executor) {
+            this(parser, executor, new CharSegmentPool(SEGMENT_SIZE, 0), null);
+        }
+
+        HtmlGenerator(final HtmlParser parser, final ExecutorService executor,
+                final CharSegmentPool pool, final File spillDirectory) {
             this.htmlParser = parser;
-            this.writer = new StringWriter();
+            this.executor = executor;
+            this.writer = new OutputBuffer(pool, spillDirectory);
         }
 
         /**
@@ -73,7 +222,40 @@ public class HtmlGeneratorFactory implements GeneratorFactory {
          */
         @Override
         public void finished() throws IOException, SAXException {
-            this.htmlParser.parse(new ByteArrayInputStream(this.writer.toString().getBytes("UTF-8")), "UTF-8", this.contentHandler);
+            if ( this.parserResult != null ) {
+                try {
+                    this.pipe.getWriter().close();
+                } catch (final IOException ioe) {
+                    // the parser stopped early, the reason is reported below
+                }
+                Throwable cause = null;
+                try {
+                    this.parserResult.get();
+                } catch (final InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted while waiting for the parser.");
+                } catch (final ExecutionException ee) {
+                    cause = ee.getCause();
+                }
+                if ( this.replayError != null ) {
+                    throw this.replayError;
+                }
+                if ( cause != null ) {
+                    if ( cause instanceof SAXException ) {
+                        throw (SAXException)cause;
+                    } else if ( cause instanceof IOException ) {
+                        throw (IOException)cause;
+                    } else if ( cause instanceof RuntimeException ) {
+                        throw (RuntimeException)cause;
+                    }
+                    throw (Error)cause;
+                }
+                this.events.drain(this.contentHandler);
+            } else {
+                // never parse a truncated output
+                this.writer.checkFailure();
+                this.htmlParser.parse(this.writer.getInputStream(), this.writer.getEncoding(), this.contentHandler);
+            }
         }
 
         /**
@@ -81,6 +263,9 @@ public class HtmlGeneratorFactory implements GeneratorFactory {
          */
         @Override
         public PrintWriter getWriter() {
+            if ( this.pipe != null ) {
+                return new PrintWriter(new StreamingWriter());
+            }
             return new PrintWriter(writer);
         }
 
@@ -88,7 +273,117 @@ public class HtmlGeneratorFactory implements GeneratorFactory {
         public void init(ProcessingContext context,
                          ProcessingComponentConfiguration config)
         throws IOException {
-            // nothing to do
+            this.writer.setSpillThreshold(config.getConfiguration().get(PROPERTY_SPILL_THRESHOLD, 0L));
+            this.flushPipeline = config.getConfiguration().get(PROPERTY_FLUSH, false);
+            if ( this.executor != null
+                 && (this.flushPipeline || config.getConfiguration().get(PROPERTY_STREAMING, false)) ) {
+                this.pipe = new CharPipe(STREAMING_BUFFER_SIZE);
+            }
+        }
+
+        /**
+         * Start the parser in the background.
+         * This is done lazily on the first output. The parser only records
+         * the events, the pipeline is called from the request thread by
+         * {@link #replayEvents()}. If the parser can't be started, the
+         * output is buffered and parsed at the end instead.
+         */
+        private void startParser() {
+            final CharPipe p = this.pipe;
+            final SaxEventQueue handler = new SaxEventQueue();
+            this.events = handler;
+            try {
+                this.parserResult = this.executor.submit(new Callable<Void>() {
+
+                    @Override
+                    public Void call() throws Exception {
+                        try {
+                            htmlParser.parse(new ReaderInputStream(p.getReader()), ReaderInputStream.ENCODING, handler);
+                        } finally {
+                            // make sure the writing side never blocks on a finished parser
+                            p.abort();
+                        }
+                        return null;
+                    }
+                });
+            } catch (final RejectedExecutionException ree) {
+                this.pipe = null;
+                this.events = null;
+            }
+        }
+
+        /**
+         * Replay the events recorded by the parser so far through the pipeline.
+         * Once the pipeline failed, the parser is stopped and the failure is
+         * reported on each further output and by {@link #finished()}.
+         */
+        private void replayEvents() throws IOException {
+            if ( this.replayError == null ) {
+                try {
+                    this.events.drain(this.contentHandler);
+                } catch (final SAXException se) {
+                    this.replayError = se;
+                    this.pipe.abort();
+                }
+            }
+            if ( this.replayError != null ) {
+                throw new IOException("Unable to process output.", this.replayError);
+            }
+        }
+
+        /**
+         * Writer used in streaming mode which starts the parser on
+         * the first output.
+         */
+        private final class StreamingWriter extends Writer {
+
+            @Override
+            public void write(final char[] cbuf, final int off, final int len) throws IOException {
+                if ( parserResult == null && pipe != null ) {
+                    startParser();
+                }
+                if ( parserResult != null ) {
+                    pipe.getWriter().write(cbuf, off, len);
+                    replayEvents();
+                } else {
+                    writer.write(cbuf, off, len);
+                }
+            }
+
+            @Override
+            public void flush() throws IOException {
+                if ( parserResult != null ) {
+                    pipe.getWriter().flush();
+                    // once the parser is idle, it has recorded the events of all output so far
+                    final boolean idle = flushPipeline && pipe.awaitIdle();
+                    replayEvents();
+                    if ( idle ) {
+                        try {
+                            contentHandler.characters(FLUSH_CHARS, 0, 0);
+                        } catch (final SAXException se) {
+                            throw new IOException("Unable to flush pipeline.", se);
+                        }
+                    }
+                }
+            }
+
+            @Override
+            public void close() throws IOException {
+                // the pipe is closed once the generator is finished
+            }
+        }
+
+        /**
+         * @see org.apache.sling.rewriter.impl.PassThroughGenerator#passThrough(java.io.Writer)
+         */
+        @Override
+        public boolean passThrough(final Writer out) throws IOException {
+            if ( this.parserResult != null ) {
+                return false;
+            }
+            this.writer.writeTo(out);
+            this.writer.release();
+            return true;
         }
 
         /**
@@ -104,7 +399,23 @@ public class HtmlGeneratorFactory implements GeneratorFactory {
          */
         @Override
         public void dispose() {
-            // nothing to do
+            this.writer.release();
+            if ( this.pipe != null ) {
+                this.pipe.abort();
+            }
+            if ( this.parserResult != null ) {
+                // make sure the parser does not outlive the request
+                try {
+                    this.parserResult.get(PARSER_STOP_TIMEOUT, TimeUnit.SECONDS);
+                } catch (final InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                    this.parserResult.cancel(true);
+                } catch (final TimeoutException te) {
+                    this.parserResult.cancel(true);
+                } catch (final ExecutionException | CancellationException e) {
+                    // the parser stopped, the error is reported by finished()
+                }
+            }
         }
     }
 }
\ No newline at end of file
@@ -0,0 +1,102 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.sling.rewriter.impl.components;
+
+/**
+ * The rules of the minify mode of the HTML5 serializers.
+ *
+ * Runs of whitespace in text are collapsed into a single space, except
+ * inside of elements where whitespace is significant. Comments are dropped
+ * with the exception of conditional comments. Quotes around attribute
+ * values are omitted where HTML5 allows it, attributes with an empty value
+ * are written as name only.
+ */
+final class HtmlMinifier {
+
+    private HtmlMinifier() {
+        // no instances
+    }
+
+    /**
+     * Check whether whitespace is preserved inside the element.
+     */
+    static boolean preservesWhitespace(final String localName) {
+        switch (localName) {
+            case "pre":
+            case "textarea":
+            case "script":
+            case "style":
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Check whether the character is HTML whitespace.
+     */
+    static boolean isWhitespace(final char c) {
+        return c == ' ' || c == '\n' || c == '\t' || c == '\r' || c == '\f';
+    }
+
+    /**
+     * Check whether the attribute value can be written without quotes.
+     */
+    static boolean canOmitQuotes(final String value) {
+        if (value.isEmpty()) {
+            return false;
+        }
+        for (int i = 0; i < value.length(); i++) {
+            switch (value.charAt(i)) {
+                case ' ':
+                case '\n':
+                case '\t':
+                case '\r':
+                case '\f':
+                case '"':
+                case '\'':
+                case '=':
+                case '<':
+                case '>':
+                case '`':
+                    return false;
+                default:
+                    // continue
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Check whether the comment is a conditional comment.
+     */
+    static boolean isConditionalComment(final char[] ch, final int start, final int length) {
+        return startsWith(ch, start, length, "[if") || startsWith(ch, start, length, "<![endif]");
+    }
+
+    private static boolean startsWith(final char[] ch, final int start, final int length, final String prefix) {
+        if (length < prefix.length()) {
+            return false;
+        }
+        for (int i = 0; i < prefix.length(); i++) {
+            if (ch[start + i] != prefix.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,265 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.sling.rewriter.impl.components;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Buffer for the output of the html generator.
+ *
+ * The output is kept in memory in a {@link CharSegmentBuffer}. If a
+ * spill directory and a threshold are configured and the output grows
+ * beyond the threshold, the buffered characters are moved into a
+ * temporary UTF-8 encoded file and all further output is appended
+ * to that file. The stream reading the file for parsing is closed once
+ * the buffer is released, so the file can be deleted right away.
+ *
+ * Writing to the spill file might fail, for example if the disk is
+ * full. As a writer wrapping this buffer might swallow the exception,
+ * the failure is remembered and reported once the output is read, so
+ * a truncated output is never processed.
+ */
+class OutputBuffer extends Writer {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(OutputBuffer.class);
+
+    private static final String SPILL_ENCODING = "UTF-8";
+
+    private final CharSegmentBuffer memory;
+
+    /** The directory for spill files or {@code null}. */
+    private final File spillDirectory;
+
+    /** Number of chars after which the output is spilled, zero for never. */
+    private long threshold;
+
+    /** The spill file, only set after spilling. */
+    private File spillFile;
+
+    /** The writer to the spill file, only set after spilling. */
+    private Writer spillWriter;
+
+    /** The stream reading the spill file, only set once the output is parsed. */
+    private InputStream spillInput;
+
+    /** The failure writing to the spill file, if any. */
+    private IOException spillFailure;
+
+    OutputBuffer(final CharSegmentPool pool, final File spillDirectory) {
+        this.memory = new CharSegmentBuffer(pool);
+        this.spillDirectory = spillDirectory;
+    }
+
+    /**
+     * Set the number of characters after which the output is spilled to disk.
+     * This has no effect if no spill directory is available.
+     * @param threshold The threshold, zero or less disables spilling.
+     */
+    void setSpillThreshold(final long threshold) {
+        this.threshold = (this.spillDirectory == null ? 0 : threshold);
+    }
+
+    @Override
+    public void write(final int c) throws IOException {
+        if ( this.spillWriter != null ) {
+            try {
+                this.spillWriter.write(c);
+            } catch (final IOException ioe) {
+                this.spillFailed(ioe);
+                throw ioe;
+            }
+        } else if ( this.spillFailure == null ) {
+            this.memory.write(c);
+            this.checkThreshold();
+        }
+    }
+
+    @Override
+    public void write(final char[] cbuf, final int off, final int len) throws IOException {
+        if ( this.spillWriter != null ) {
+            try {
+                this.spillWriter.write(cbuf, off, len);
+            } catch (final IOException ioe) {
+                this.spillFailed(ioe);
+                throw ioe;
+            }
+        } else if ( this.spillFailure == null ) {
+            this.memory.write(cbuf, off, len);
+            this.checkThreshold();
+        }
+    }
+
+    @Override
+    public void write(final String str, final int off, final int len) throws IOException {
+        if ( this.spillWriter != null ) {
+            try {
+                this.spillWriter.write(str, off, len);
+            } catch (final IOException ioe) {
+                this.spillFailed(ioe);
+                throw ioe;
+            }
+        } else if ( this.spillFailure == null ) {
+            this.memory.write(str, off, len);
+            this.checkThreshold();
+        }
+    }
+
+    /**
+     * Give up on the output after writing to the spill file failed.
+     * All further output is dropped, reading the output reports the failure.
+     */
+    private void spillFailed(final IOException ioe) {
+        LOGGER.error("Unable to write output to spill file " + this.spillFile, ioe);
+        this.spillFailure = ioe;
+        this.discardSpillFile();
+    }
+
+    /**
+     * Report a failure writing the output.
+     * @throws IOException If writing to the spill file failed
+     */
+    void checkFailure() throws IOException {
+        if ( this.spillFailure != null ) {
+            throw new IOException("Output is incomplete as writing the spill file failed.", this.spillFailure);
+        }
+    }
+
+    private void checkThreshold() {
+        if ( this.threshold > 0 && this.memory.length() > this.threshold ) {
+            try {
+                this.spillDirectory.mkdirs();
+                this.spillFile = File.createTempFile("output", ".html", this.spillDirectory);
+                LOGGER.debug("Output exceeds {} characters, spilling to {}", this.threshold, this.spillFile);
+                this.spillWriter = new OutputStreamWriter(this.openSpillFile(this.spillFile), StandardCharsets.UTF_8);
+                this.memory.writeTo(this.spillWriter);
+                this.memory.release();
+            } catch (final IOException ioe) {
+                LOGGER.warn("Unable to spill output to " + this.spillDirectory + ", keeping it in memory.", ioe);
+                this.threshold = 0;
+                this.discardSpillFile();
+            }
+        }
+    }
+
+    /**
+     * Open the spill file for writing.
+     */
+    OutputStream openSpillFile(final File file) throws IOException {
+        return new FileOutputStream(file);
+    }
+
+    /**
+     * The encoding of the stream returned by {@link #getInputStream()}.
+     */
+    String getEncoding() {
+        return this.spillFile != null ? SPILL_ENCODING : ReaderInputStream.ENCODING;
+    }
+
+    /**
+     * Get the buffered output as a stream of bytes.
+     * No further output must be written after calling this method.
+     * @return The input stream
+     * @throws IOException If writing or reading the spill file failed
+     */
+    InputStream getInputStream() throws IOException {
+        this.checkFailure();
+        if ( this.spillFile == null ) {
+            return new ReaderInputStream(this.memory.getReader());
+        }
+        this.spillWriter.close();
+        this.spillInput = new BufferedInputStream(new FileInputStream(this.spillFile));
+        return this.spillInput;
+    }
+
+    /**
+     * Write the buffered output to the given writer.
+     * No further output must be written after calling this method.
+     * @param out The writer
+     * @throws IOException If writing fails or the spill file can't be read
+     */
+    void writeTo(final Writer out) throws IOException {
+        this.checkFailure();
+        if ( this.spillFile == null ) {
+            this.memory.writeTo(out);
+        } else {
+            this.spillWriter.close();
+            try (final Reader reader = new InputStreamReader(new FileInputStream(this.spillFile), StandardCharsets.UTF_8)) {
+                final char[] buffer = new char[8192];
+                int n;
+                while ( (n = reader.read(buffer)) != -1 ) {
+                    out.write(buffer, 0, n);
+                }
+            }
+        }
+    }
+
+    /**
+     * Release all resources held by this buffer.
+     */
+    void release() {
+        this.memory.release();
+        this.discardSpillFile();
+    }
+
+    private void discardSpillFile() {
+        if ( this.spillFile != null ) {
+            closeQuietly(this.spillWriter);
+            closeQuietly(this.spillInput);
+            if ( !this.spillFile.delete() ) {
+                LOGGER.warn("Unable to delete spill file {}", this.spillFile);
+            }
+            this.spillFile = null;
+            this.spillWriter = null;
+            this.spillInput = null;
+        }
+    }
+
+    private static void closeQuietly(final Closeable closeable) {
+        if ( closeable != null ) {
+            try {
+                closeable.close();
+            } catch (final IOException ignore) {
+                // ignore
+            }
+        }
+    }
+
+    @Override
+    public void flush() {
+        // nothing to do
+    }
+
+    @Override
+    public void close() {
+        // nothing to do
+    }
+}
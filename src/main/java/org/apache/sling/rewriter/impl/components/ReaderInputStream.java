@@ -0,0 +1,113 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.sling.rewriter.impl.components;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Reader;
+
+/**
+ * Input stream exposing the characters of a reader as UTF-16BE bytes.
+ *
+ * The html parser only accepts an input stream together with an encoding.
+ * UTF-16BE maps each char onto two bytes without any encoder state, so the
+ * characters can be handed over in small blocks without ever materializing
+ * the whole document as a string or byte array.
+ */
+class ReaderInputStream extends InputStream {
+
+    /** The encoding of the produced bytes. */
+    static final String ENCODING = "UTF-16BE";
+
+    private static final int BUFFER_SIZE = 2048;
+
+    private final Reader reader;
+
+    private final char[] chars = new char[BUFFER_SIZE];
+
+    /** Number of valid chars in the buffer. */
+    private int charCount;
+
+    /** Position of the next byte, counted in bytes over the char buffer. */
+    private int bytePos;
+
+    ReaderInputStream(final Reader reader) {
+        this.reader = reader;
+    }
+
+    /**
+     * Make sure the buffer has unread content.
+     * @return {@code false} if the reader is exhausted
+     */
+    private boolean fill() throws IOException {
+        if ( this.bytePos < this.charCount * 2 ) {
+            return true;
+        }
+        final int read = this.reader.read(this.chars, 0, this.chars.length);
+        if ( read == -1 ) {
+            return false;
+        }
+        this.charCount = read;
+        this.bytePos = 0;
+        return true;
+    }
+
+    private int byteAt(final int pos) {
+        final char c = this.chars[pos >> 1];
+        return ( (pos & 1) == 0 ? (c >> 8) : c ) & 0xFF;
+    }
+
+    @Override
+    public int read() throws IOException {
+        if ( !this.fill() ) {
+            return -1;
+        }
+        final int b = this.byteAt(this.bytePos);
+        this.bytePos++;
+        return b;
+    }
+
+    @Override
+    public int read(final byte[] b, final int off, final int len) throws IOException {
+        if ( len == 0 ) {
+            return 0;
+        }
+        if ( !this.fill() ) {
+            return -1;
+        }
+        final int count = Math.min(len, this.charCount * 2 - this.bytePos);
+        for(int i=0; i<count; i++) {
+            b[off + i] = (byte)this.byteAt(this.bytePos + i);
+        }
+        this.bytePos += count;
+        return count;
+    }
+
+    @Override
+    public int available() throws IOException {
+        final int buffered = this.charCount * 2 - this.bytePos;
+        if ( buffered > 0 ) {
+            return buffered;
+        }
+        return this.reader.ready() ? 2 : 0;
+    }
+
+    @Override
+    public void close() throws IOException {
+        this.reader.close();
+    }
+}
@@ -0,0 +1,283 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.sling.rewriter.impl.components;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import org.xml.sax.Attributes;
+import org.xml.sax.ContentHandler;
+import org.xml.sax.Locator;
+import org.xml.sax.SAXException;
+import org.xml.sax.ext.LexicalHandler;
+import org.xml.sax.helpers.AttributesImpl;
+import org.xml.sax.helpers.LocatorImpl;
+
+/**
+ * Queue of SAX events handing the events of a parser running in
+ * another thread over to the thread processing them.
+ *
+ * The parsing thread records the events as the content handler of
+ * the parser, the processing thread replays the recorded events
+ * with {@link #drain(ContentHandler)}. All data of an event is copied,
+ * so the parser is free to reuse its buffers. Lexical events are only
+ * replayed if the target handler is a {@link LexicalHandler}.
+ */
+class SaxEventQueue implements ContentHandler, LexicalHandler {
+
+    /** A recorded event. */
+    private abstract static class Event {
+
+        abstract void replay(ContentHandler handler) throws SAXException;
+    }
+
+    /** A recorded lexical event. */
+    private abstract static class LexicalEvent extends Event {
+
+        @Override
+        final void replay(final ContentHandler handler) throws SAXException {
+            if ( handler instanceof LexicalHandler ) {
+                this.replay((LexicalHandler)handler);
+            }
+        }
+
+        abstract void replay(LexicalHandler handler) throws SAXException;
+    }
+
+    private final Queue<Event> events = new ConcurrentLinkedQueue<>();
+
+    /**
+     * Replay all events recorded so far, in order.
+     * @param handler The handler receiving the events
+     * @throws SAXException If the handler fails, the remaining events are kept.
+     */
+    void drain(final ContentHandler handler) throws SAXException {
+        Event event;
+        while ( (event = this.events.poll()) != null ) {
+            event.replay(handler);
+        }
+    }
+
+    @Override
+    public void setDocumentLocator(final Locator locator) {
+        final Locator copy = locator == null ? null : new LocatorImpl(locator);
+        this.events.add(new Event() {
+
+            @Override
+            void replay(final ContentHandler handler) {
+                handler.setDocumentLocator(copy);
+            }
+        });
+    }
+
+    @Override
+    public void startDocument() {
+        this.events.add(new Event() {
+
+            @Override
+            void replay(final ContentHandler handler) throws SAXException {
+                handler.startDocument();
+            }
+        });
+    }
+
+    @Override
+    public void endDocument() {
+        this.events.add(new Event() {
+
+            @Override
+            void replay(final ContentHandler handler) throws SAXException {
+                handler.endDocument();
+            }
+        });
+    }
+
+    @Override
+    public void startPrefixMapping(final String prefix, final String uri) {
+        this.events.add(new Event() {
+
+            @Override
+            void replay(final ContentHandler handler) throws SAXException {
+                handler.startPrefixMapping(prefix, uri);
+            }
+        });
+    }
+
+    @Override
+    public void endPrefixMapping(final String prefix) {
+        this.events.add(new Event() {
+
+            @Override
+            void replay(final ContentHandler handler) throws SAXException {
+                handler.endPrefixMapping(prefix);
+            }
+        });
+    }
+
+    @Override
+    public void startElement(final String uri, final String localName, final String qName, final Attributes atts) {
+        final Attributes copy = new AttributesImpl(atts);
+        this.events.add(new Event() {
+
+            @Override
+            void replay(final ContentHandler handler) throws SAXException {
+                handler.startElement(uri, localName, qName, copy);
+            }
+        });
+    }
+
+    @Override
+    public void endElement(final String uri, final String localName, final String qName) {
+        this.events.add(new Event() {
+
+            @Override
+            void replay(final ContentHandler handler) throws SAXException {
+                handler.endElement(uri, localName, qName);
+            }
+        });
+    }
+
+    @Override
+    public void characters(final char[] ch, final int start, final int length) {
+        final char[] copy = copy(ch, start, length);
+        this.events.add(new Event() {
+
+            @Override
+            void replay(final ContentHandler handler) throws SAXException {
+                handler.characters(copy, 0, copy.length);
+            }
+        });
+    }
+
+    @Override
+    public void ignorableWhitespace(final char[] ch, final int start, final int length) {
+        final char[] copy = copy(ch, start, length);
+        this.events.add(new Event() {
+
+            @Override
+            void replay(final ContentHandler handler) throws SAXException {
+                handler.ignorableWhitespace(copy, 0, copy.length);
+            }
+        });
+    }
+
+    @Override
+    public void processingInstruction(final String target, final String data) {
+        this.events.add(new Event() {
+
+            @Override
+            void replay(final ContentHandler handler) throws SAXException {
+                handler.processingInstruction(target, data);
+            }
+        });
+    }
+
+    @Override
+    public void skippedEntity(final String name) {
+        this.events.add(new Event() {
+
+            @Override
+            void replay(final ContentHandler handler) throws SAXException {
+                handler.skippedEntity(name);
+            }
+        });
+    }
+
+    @Override
+    public void startDTD(final String name, final String publicId, final String systemId) {
+        this.events.add(new LexicalEvent() {
+
+            @Override
+            void replay(final LexicalHandler handler) throws SAXException {
+                handler.startDTD(name, publicId, systemId);
+            }
+        });
+    }
+
+    @Override
+    public void endDTD() {
+        this.events.add(new LexicalEvent() {
+
+            @Override
+            void replay(final LexicalHandler handler) throws SAXException {
+                handler.endDTD();
+            }
+        });
+    }
+
+    @Override
+    public void startEntity(final String name) {
+        this.events.add(new LexicalEvent() {
+
+            @Override
+            void replay(final LexicalHandler handler) throws SAXException {
+                handler.startEntity(name);
+            }
+        });
+    }
+
+    @Override
+    public void endEntity(final String name) {
+        this.events.add(new LexicalEvent() {
+
+            @Override
+            void replay(final LexicalHandler handler) throws SAXException {
+                handler.endEntity(name);
+            }
+        });
+    }
+
+    @Override
+    public void startCDATA() {
+        this.events.add(new LexicalEvent() {
+
+            @Override
+            void replay(final LexicalHandler handler) throws SAXException {
+                handler.startCDATA();
+            }
+        });
+    }
+
+    @Override
+    public void endCDATA() {
+        this.events.add(new LexicalEvent() {
+
+            @Override
+            void replay(final LexicalHandler handler) throws SAXException {
+                handler.endCDATA();
+            }
+        });
+    }
+
+    @Override
+    public void comment(final char[] ch, final int start, final int length) {
+        final char[] copy = copy(ch, start, length);
+        this.events.add(new LexicalEvent() {
+
+            @Override
+            void replay(final LexicalHandler handler) throws SAXException {
+                handler.comment(copy, 0, copy.length);
+            }
+        });
+    }
+
+    private static char[] copy(final char[] ch, final int start, final int length) {
+        final char[] copy = new char[length];
+        System.arraycopy(ch, start, copy, 0, length);
+        return copy;
+    }
+}
@@ -0,0 +1,501 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.sling.rewriter.impl.components;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.sling.rewriter.ProcessingComponentConfiguration;
+import org.apache.sling.rewriter.ProcessingContext;
+import org.apache.sling.rewriter.Serializer;
+import org.xml.sax.Attributes;
+import org.xml.sax.Locator;
+import org.xml.sax.SAXException;
+import org.xml.sax.ext.LexicalHandler;
+
+/**
+ * Serializer for writing HTML5 compliant markup as UTF-8 bytes.
+ *
+ * The output is the same as the one of the {@link Html5Serializer}, but
+ * it is encoded directly into an unsynchronized buffer which is written to
+ * the output stream of the response. Common element and attribute names
+ * are encoded once up front.
+ *
+ * The output stream is only requested once the first bytes are written.
+ * Until then the response is not touched, so the output can still be
+ * passed through the writer of the response instead.
+ */
+public class Utf8Html5Serializer implements Serializer, LexicalHandler {
+
+    private static final int BUFFER_SIZE = 8192;
+
+    private static final byte[] DOCTYPE = ("<!DOCTYPE html>" + System.lineSeparator()).getBytes(StandardCharsets.UTF_8);
+
+    private static final byte[] COMMENT_START = "<!--".getBytes(StandardCharsets.UTF_8);
+
+    private static final byte[] COMMENT_END = "-->".getBytes(StandardCharsets.UTF_8);
+
+    /** Replacement for malformed surrogates, like the JDK encoder. */
+    private static final byte REPLACEMENT = '?';
+
+    /** The encoded names of common elements and attributes. */
+    private static final Map<String, byte[]> NAMES = new HashMap<>();
+    static {
+        for (final String name : new String[] {
+                // elements
+                "a", "abbr", "article", "aside", "b", "body", "br", "button", "div", "em", "footer", "form", "h1", "h2",
+                "h3", "h4", "h5", "h6", "head", "header", "hr", "html", "i", "iframe", "img", "input", "label", "li",
+                "link", "main", "meta", "nav", "noscript", "ol", "option", "p", "picture", "script", "section", "select",
+                "source", "span", "strong", "style", "svg", "table", "tbody", "td", "textarea", "th", "thead", "title",
+                "tr", "ul",
+                // attributes
+                "alt", "aria-hidden", "aria-label", "charset", "class", "content", "data-src", "for", "height", "href",
+                "id", "lang", "media", "name", "property", "rel", "role", "sizes", "src", "srcset", "target", "type",
+                "value", "width" }) {
+            NAMES.put(name, name.getBytes(StandardCharsets.UTF_8));
+        }
+    }
+
+    private final byte[] buffer = new byte[BUFFER_SIZE];
+
+    private int count;
+
+    /** The output stream, only set once output is written. */
+    private OutputStream out;
+
+    private ProcessingContext context;
+
+    private HtmlEscaper escaper = HtmlEscaper.HTML4;
+
+    private Html5Rules rules = Html5Rules.DEFAULT;
+
+    private boolean inScript = false;
+
+    private boolean minify = false;
+
+    /** The number of open elements preserving whitespace, in minify mode. */
+    private int preserveDepth = 0;
+
+    /** Whether the last character written in minify mode was collapsed whitespace. */
+    private boolean lastWasSpace = false;
+
+    /** A high surrogate at the end of the last characters event, or {@code 0}. */
+    private char pendingSurrogate;
+
+    @Override
+    public void init(ProcessingContext context, ProcessingComponentConfiguration config) throws IOException {
+        this.context = context;
+        out = null;
+        count = 0;
+        final String escaping = config.getConfiguration().get(Html5SerializerFactory.PROPERTY_ESCAPING,
+                Html5SerializerFactory.ESCAPING_HTML4);
+        if (Html5SerializerFactory.ESCAPING_MINIMAL.equals(escaping)) {
+            escaper = HtmlEscaper.minimal(StandardCharsets.UTF_8.name());
+        } else {
+            escaper = HtmlEscaper.HTML4;
+        }
+        try {
+            rules = Html5Rules.create(config.getConfiguration().get(Html5SerializerFactory.PROPERTY_DROP_ATTRIBUTES,
+                    String[].class));
+        } catch (final IllegalArgumentException iae) {
+            throw new IOException(iae.getMessage());
+        }
+        minify = config.getConfiguration().get(Html5SerializerFactory.PROPERTY_MINIFY, false);
+        preserveDepth = 0;
+        lastWasSpace = false;
+    }
+
+    @Override
+    public void characters(char[] chars, int offset, int length) throws SAXException {
+        if (length == 0) {
+            flush();
+        } else {
+            if (offset < 0 || offset + length > chars.length) {
+                throw new SAXException("Offset / length out of bounds");
+            }
+            if (inScript) {
+                writeText(chars, offset, length, null);
+            } else if (minify && preserveDepth == 0) {
+                writeCollapsed(chars, offset, length);
+            } else {
+                writeText(chars, offset, length, escaper.getTextEntities());
+            }
+        }
+    }
+
+    private void writeCollapsed(char[] chars, int offset, int length) throws SAXException {
+        final int end = offset + length;
+        int start = offset;
+        for (int i = offset; i < end; i++) {
+            if (HtmlMinifier.isWhitespace(chars[i])) {
+                if (i > start) {
+                    writeText(chars, start, i - start, escaper.getTextEntities());
+                    lastWasSpace = false;
+                }
+                if (!lastWasSpace) {
+                    writePendingSurrogate();
+                    writeByte(' ');
+                    lastWasSpace = true;
+                }
+                start = i + 1;
+            }
+        }
+        if (end > start) {
+            writeText(chars, start, end - start, escaper.getTextEntities());
+            lastWasSpace = false;
+        }
+    }
+
+    @Override
+    public void comment(char[] ch, int start, int length) throws SAXException {
+        // comments are dropped, except for conditional comments in minify mode
+        if (minify && HtmlMinifier.isConditionalComment(ch, start, length)) {
+            writePendingSurrogate();
+            writeBytes(COMMENT_START);
+            writeText(ch, start, length, null);
+            writePendingSurrogate();
+            writeBytes(COMMENT_END);
+        }
+    }
+
+    @Override
+    public void startDTD(String name, String publicId, String systemId) throws SAXException {
+        // Nothing required
+    }
+
+    @Override
+    public void endDTD() throws SAXException {
+        // Nothing required
+    }
+
+    @Override
+    public void startEntity(String name) throws SAXException {
+        // Nothing required
+    }
+
+    @Override
+    public void endEntity(String name) throws SAXException {
+        // Nothing required
+    }
+
+    @Override
+    public void startCDATA() throws SAXException {
+        // Nothing required
+    }
+
+    @Override
+    public void endCDATA() throws SAXException {
+        // Nothing required
+    }
+
+    @Override
+    public void dispose() {
+        // Nothing required
+    }
+
+    @Override
+    public void endDocument() throws SAXException {
+        flush();
+    }
+
+    @Override
+    public void endElement(String uri, String localName, String qName) throws SAXException {
+        writePendingSurrogate();
+        if (!Html5Rules.isVoidElement(localName)) {
+            writeByte('<');
+            writeByte('/');
+            writeName(localName);
+            writeByte('>');
+        }
+        if (minify && preserveDepth > 0 && HtmlMinifier.preservesWhitespace(localName)) {
+            preserveDepth--;
+        }
+        lastWasSpace = false;
+        inScript = false;
+    }
+
+    @Override
+    public void endPrefixMapping(String s) throws SAXException {
+        // Nothing required
+    }
+
+    @Override
+    public void ignorableWhitespace(char[] ac, int i, int j) throws SAXException {
+        // Nothing required
+    }
+
+    @Override
+    public void processingInstruction(String s, String s1) throws SAXException {
+        // Nothing required
+    }
+
+    @Override
+    public void setDocumentLocator(Locator locator1) {
+        // Nothing required
+    }
+
+    @Override
+    public void skippedEntity(String s) throws SAXException {
+        // Nothing required
+    }
+
+    @Override
+    public void startDocument() throws SAXException {
+        writeBytes(DOCTYPE);
+    }
+
+    @Override
+    public void startElement(String uri, String localName, String qName, Attributes atts) throws SAXException {
+        writePendingSurrogate();
+        boolean endSlash = false;
+        boolean lastUnquoted = false;
+        writeByte('<');
+        writeName(localName);
+
+        final String[] dropped = rules.getDroppedAttributes(localName);
+        for (int i = 0; i < atts.getLength(); i++) {
+            if ("endSlash".equals(atts.getQName(i))) {
+                endSlash = true;
+                continue;
+            }
+            final String value = atts.getValue(i);
+            if (value == null || Html5Rules.isDropped(dropped, atts.getLocalName(i))) {
+                continue;
+            }
+            writeByte(' ');
+            writeName(atts.getLocalName(i));
+            lastUnquoted = false;
+            if (minify && value.isEmpty()) {
+                continue;
+            }
+            writeByte('=');
+            if (minify && HtmlMinifier.canOmitQuotes(value)) {
+                writeAttributeValue(value);
+                lastUnquoted = true;
+            } else {
+                writeByte('"');
+                writeAttributeValue(value);
+                writeByte('"');
+            }
+        }
+
+        if (endSlash) {
+            if (lastUnquoted) {
+                // otherwise the slash would become part of the value
+                writeByte(' ');
+            }
+            writeByte('/');
+        }
+        writeByte('>');
+        inScript = "script".equals(localName);
+        if (minify && HtmlMinifier.preservesWhitespace(localName)) {
+            preserveDepth++;
+        }
+        lastWasSpace = false;
+    }
+
+    @Override
+    public void startPrefixMapping(String s, String s1) throws SAXException {
+        // Nothing required
+    }
+
+    private void flush() throws SAXException {
+        writePendingSurrogate();
+        try {
+            flushBuffer();
+            if (out != null) {
+                out.flush();
+            }
+        } catch (final IOException ioe) {
+            throw new SAXException(ioe);
+        }
+    }
+
+    private void flushBuffer() throws IOException {
+        if (count > 0) {
+            getOutputStream().write(buffer, 0, count);
+            count = 0;
+        }
+    }
+
+    /**
+     * Get the output stream of the response on first use.
+     */
+    private OutputStream getOutputStream() throws IOException {
+        if (out == null) {
+            if (context.getResponse() != null) {
+                context.getResponse().setCharacterEncoding(StandardCharsets.UTF_8.name());
+            }
+            out = context.getOutputStream();
+            if (out == null) {
+                throw new IOException("Failed to write UTF-8 HTML5 output, null output stream specified!");
+            }
+        }
+        return out;
+    }
+
+    /**
+     * Write a high surrogate which has not been followed by a low surrogate.
+     */
+    private void writePendingSurrogate() throws SAXException {
+        if (pendingSurrogate != 0) {
+            pendingSurrogate = 0;
+            writeByte(REPLACEMENT);
+        }
+    }
+
+    /**
+     * Make sure the buffer has room for the number of bytes.
+     */
+    private void ensure(final int length) throws SAXException {
+        if (count + length > buffer.length) {
+            try {
+                flushBuffer();
+            } catch (final IOException ioe) {
+                throw new SAXException(ioe);
+            }
+        }
+    }
+
+    private void writeByte(final int b) throws SAXException {
+        ensure(1);
+        buffer[count++] = (byte) b;
+    }
+
+    private void writeBytes(final byte[] bytes) throws SAXException {
+        if (bytes.length > buffer.length) {
+            try {
+                flushBuffer();
+                getOutputStream().write(bytes);
+            } catch (final IOException ioe) {
+                throw new SAXException(ioe);
+            }
+        } else {
+            ensure(bytes.length);
+            System.arraycopy(bytes, 0, buffer, count, bytes.length);
+            count += bytes.length;
+        }
+    }
+
+    private void writeName(final String name) throws SAXException {
+        final byte[] encoded = NAMES.get(name);
+        if (encoded != null) {
+            writeBytes(encoded);
+        } else {
+            for (int i = 0; i < name.length(); i++) {
+                if (writeChar(name.charAt(i), i + 1 < name.length() ? name.charAt(i + 1) : 0)) {
+                    i++;
+                }
+            }
+        }
+    }
+
+    /**
+     * Write the ASCII characters of an entity.
+     */
+    private void writeEntity(final String entity) throws SAXException {
+        ensure(entity.length());
+        for (int i = 0; i < entity.length(); i++) {
+            buffer[count++] = (byte) entity.charAt(i);
+        }
+    }
+
+    private void writeText(final char[] chars, final int offset, final int length, final String[] entities)
+            throws SAXException {
+        final int end = offset + length;
+        int i = offset;
+        if (pendingSurrogate != 0) {
+            if (Character.isLowSurrogate(chars[i])) {
+                writeCodePoint(Character.toCodePoint(pendingSurrogate, chars[i]));
+                pendingSurrogate = 0;
+                i++;
+            } else {
+                writePendingSurrogate();
+            }
+        }
+        for (; i < end; i++) {
+            final char c = chars[i];
+            if (entities != null && c < entities.length && entities[c] != null) {
+                writeEntity(entities[c]);
+            } else if (c < 0x80) {
+                ensure(1);
+                buffer[count++] = (byte) c;
+            } else if (Character.isHighSurrogate(c) && i + 1 == end) {
+                // the low surrogate might follow with the next event
+                pendingSurrogate = c;
+            } else if (writeChar(c, i + 1 < end ? chars[i + 1] : 0)) {
+                i++;
+            }
+        }
+    }
+
+    private void writeAttributeValue(final String value) throws SAXException {
+        final String[] entities = escaper.getAttributeEntities();
+        final int end = value.length();
+        for (int i = 0; i < end; i++) {
+            final char c = value.charAt(i);
+            if (c < entities.length && entities[c] != null) {
+                writeEntity(entities[c]);
+            } else if (c < 0x80) {
+                ensure(1);
+                buffer[count++] = (byte) c;
+            } else if (writeChar(c, i + 1 < end ? value.charAt(i + 1) : 0)) {
+                i++;
+            }
+        }
+    }
+
+    /**
+     * Encode a character.
+     * @param c The character
+     * @param next The following character or {@code 0}
+     * @return {@code true} if the following character has been consumed as low surrogate.
+     */
+    private boolean writeChar(final char c, final char next) throws SAXException {
+        if (c < 0x80) {
+            ensure(1);
+            buffer[count++] = (byte) c;
+        } else if (c < 0x800) {
+            ensure(2);
+            buffer[count++] = (byte) (0xC0 | (c >> 6));
+            buffer[count++] = (byte) (0x80 | (c & 0x3F));
+        } else if (Character.isSurrogate(c)) {
+            if (Character.isHighSurrogate(c) && Character.isLowSurrogate(next)) {
+                writeCodePoint(Character.toCodePoint(c, next));
+                return true;
+            }
+            writeByte(REPLACEMENT);
+        } else {
+            ensure(3);
+            buffer[count++] = (byte) (0xE0 | (c >> 12));
+            buffer[count++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+            buffer[count++] = (byte) (0x80 | (c & 0x3F));
+        }
+        return false;
+    }
+
+    private void writeCodePoint(final int codePoint) throws SAXException {
+        ensure(4);
+        buffer[count++] = (byte) (0xF0 | (codePoint >> 18));
+        buffer[count++] = (byte) (0x80 | ((codePoint >> 12) & 0x3F));
+        buffer[count++] = (byte) (0x80 | ((codePoint >> 6) & 0x3F));
+        buffer[count++] = (byte) (0x80 | (codePoint & 0x3F));
+    }
+}
@@ -0,0 +1,44 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.sling.rewriter.impl.components;
+
+import org.apache.sling.rewriter.Serializer;
+import org.apache.sling.rewriter.SerializerFactory;
+import org.osgi.framework.Constants;
+import org.osgi.service.component.annotations.Component;
+
+/**
+ * This sax serializer serializes HTML5 Compliant Markup directly as UTF-8
+ * bytes to the output stream of the response, bypassing the writer.
+ * The character encoding of the response is set to UTF-8.
+ *
+ * The serializer supports the same configuration as the serializer created
+ * by the {@link Html5SerializerFactory}.
+ */
+@Component(service = SerializerFactory.class, property = { Constants.SERVICE_VENDOR + "=The Apache Software Foundation",
+        "pipeline.type=html5-utf8-serializer" })
+public class Utf8Html5SerializerFactory implements SerializerFactory {
+
+    /**
+     * @see org.apache.sling.rewriter.SerializerFactory#createSerializer()
+     */
+    @Override
+    public Serializer createSerializer() {
+        return new Utf8Html5Serializer();
+    }
+
+}
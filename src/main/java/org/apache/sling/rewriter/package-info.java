@@ -17,7 +17,7 @@
  * under the License.
  */
 
-@Version("1.0.1")
+@Version("1.1.0")
 package org.apache.sling.rewriter;
 
 import org.osgi.annotation.versioning.Version;
@@ -17,79 +17,170 @@
 package org.apache.sling.rewriter.impl;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
 
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.sling.rewriter.GeneratorFactory;
+import org.apache.sling.rewriter.Recyclable;
+import org.apache.sling.rewriter.SerializerFactory;
 import org.apache.sling.rewriter.Transformer;
 import org.apache.sling.rewriter.TransformerFactory;
+import org.apache.sling.testing.mock.sling.junit.SlingContext;
+import org.junit.Rule;
 import org.junit.Test;
 import org.mockito.Mockito;
-import org.osgi.framework.BundleContext;
+import org.osgi.framework.Constants;
 import org.osgi.framework.InvalidSyntaxException;
 
+import com.google.common.collect.ImmutableMap;
+
 public class FactoryCacheTest {
 
+    @Rule
+    public final SlingContext context = new SlingContext();
+
+    private Transformer registerGlobalTransformer(final int ranking, final String extension) {
+        final TransformerFactory factory = Mockito.mock(TransformerFactory.class);
+        final Transformer transformer = Mockito.mock(Transformer.class);
+        Mockito.when(factory.createTransformer()).thenReturn(transformer);
+        final Map<String, Object> props = new HashMap<>();
+        props.put(FactoryCache.PROPERTY_MODE, FactoryCache.MODE_GLOBAL);
+        props.put(Constants.SERVICE_RANKING, ranking);
+        if ( extension != null ) {
+            props.put("pipeline.extensions", extension);
+        }
+        context.registerService(TransformerFactory.class, factory, props);
+        return transformer;
+    }
+
+    private List<Transformer> createTransformers(final GlobalTransformers transformers, final int group) {
+        final List<Transformer> result = new ArrayList<>();
+        for(int m = transformers.nextMatch(group, 0); m >= 0; m = transformers.nextMatch(group, m + 1)) {
+            result.add(transformers.getFactory(group, m).createTransformer());
+        }
+        assertEquals(transformers.getCount(group), result.size());
+        return result;
+    }
+
+    @Test
+    public void testGlobalTransformers() throws InvalidSyntaxException {
+        final FactoryCache cache = new FactoryCache(context.bundleContext());
+        cache.start();
+        try {
+            final ServletProcessingContext processingContext = new ServletProcessingContext(context.request(),
+                    context.response(), context.response(), "text/html");
+            context.requestPathInfo().setExtension("html");
+
+            // no global transformers
+            GlobalTransformers result = cache.getGlobalTransformers(processingContext);
+            assertEquals(0, result.getCount(GlobalTransformers.PRE));
+            assertEquals(0, result.getCount(GlobalTransformers.POST));
+
+            // unconditional transformers are shared between requests
+            final Transformer t1 = registerGlobalTransformer(-1, null);
+            final Transformer t2 = registerGlobalTransformer(1, null);
+            result = cache.getGlobalTransformers(processingContext);
+            assertSame(result, cache.getGlobalTransformers(processingContext));
+            assertEquals(Arrays.asList(t1), createTransformers(result, GlobalTransformers.PRE));
+            assertEquals(Arrays.asList(t2), createTransformers(result, GlobalTransformers.POST));
+
+            // conditional transformers are checked against the request
+            final Transformer t3 = registerGlobalTransformer(2, "html");
+            registerGlobalTransformer(3, "xml");
+            result = cache.getGlobalTransformers(processingContext);
+            assertEquals(Arrays.asList(t1), createTransformers(result, GlobalTransformers.PRE));
+            assertEquals(Arrays.asList(t2, t3), createTransformers(result, GlobalTransformers.POST));
+            // the selection is cached for the same matching conditional transformers
+            assertSame(result, cache.getGlobalTransformers(processingContext));
+        } finally {
+            cache.stop();
+        }
+    }
+
     @Test
-    public void testCreateTransformers() throws InvalidSyntaxException {
-        final BundleContext bc = Mockito.mock(BundleContext.class);
-        final FactoryCache cache = new FactoryCache(bc);
-
-        final TransformerFactory tf1 = Mockito.mock(TransformerFactory.class);
-        final Transformer t1 = Mockito.mock(Transformer.class);
-        Mockito.when(tf1.createTransformer()).thenReturn(t1);
-
-        // empty double array
-        Transformer[][] result = cache.createTransformers(TransformerFactoryServiceTracker.EMPTY_DOUBLE_FACTORY_ARRAY);
-        assertEquals(2, result.length);
-        assertEquals(0, result[0].length);
-        assertEquals(0, result[1].length);
-
-        // first empty second t1
-        final TransformerFactory[][] factories = new TransformerFactory[][] { TransformerFactoryServiceTracker.EMPTY_FACTORY_ARRAY, new TransformerFactory[] { tf1 } };
-        result = cache.createTransformers(factories);
-        assertEquals(2, result.length);
-        assertEquals(0, result[0].length);
-        assertEquals(1, result[1].length);
-        assertEquals(t1, result[1][0]);
-
-        // first t1 second empty
-        final TransformerFactory[][] factories2 = new TransformerFactory[][] { new TransformerFactory[] { tf1 }, TransformerFactoryServiceTracker.EMPTY_FACTORY_ARRAY };
-        result = cache.createTransformers(factories2);
-        assertEquals(2, result.length);
-        assertEquals(1, result[0].length);
-        assertEquals(0, result[1].length);
-        assertEquals(t1, result[0][0]);
-
-        // first t1 second t1
-        final TransformerFactory[][] factories3 = new TransformerFactory[][] { new TransformerFactory[] { tf1 }, new TransformerFactory[] { tf1 } };
-        result = cache.createTransformers(factories3);
-        assertEquals(2, result.length);
-        assertEquals(1, result[0].length);
-        assertEquals(1, result[1].length);
-        assertEquals(t1, result[0][0]);
-        assertEquals(t1, result[1][0]);
-
-        // create second transformer factory
-        final TransformerFactory tf2 = Mockito.mock(TransformerFactory.class);
-        final Transformer t2 = Mockito.mock(Transformer.class);
-        Mockito.when(tf2.createTransformer()).thenReturn(t2);
-
-        // first t1 and t2, second t2 and t1
-        final TransformerFactory[][] factories4 = new TransformerFactory[][] { new TransformerFactory[] { tf1, tf2 }, new TransformerFactory[] { tf2, tf1 } };
-        result = cache.createTransformers(factories4);
-        assertEquals(2, result.length);
-        assertEquals(2, result[0].length);
-        assertEquals(2, result[1].length);
-        assertEquals(t1, result[0][0]);
-        assertEquals(t2, result[0][1]);
-        assertEquals(t2, result[1][0]);
-        assertEquals(t1, result[1][1]);
-
-        // first t1 and null, second null and t1
-        final TransformerFactory[][] factories5 = new TransformerFactory[][] { new TransformerFactory[] { tf1, null }, new TransformerFactory[] { null, tf1 } };
-        result = cache.createTransformers(factories5);
-        assertEquals(2, result.length);
-        assertEquals(1, result[0].length);
-        assertEquals(1, result[1].length);
-        assertEquals(t1, result[0][0]);
-        assertEquals(t1, result[1][0]);
+    public void testPipelineTemplateIsReusedUntilFactoriesChange() throws IOException, InvalidSyntaxException {
+        final FactoryCache cache = new FactoryCache(context.bundleContext());
+        cache.start();
+        try {
+            context.registerService(GeneratorFactory.class, Mockito.mock(GeneratorFactory.class),
+                    Collections.<String, Object>singletonMap(FactoryCache.PROPERTY_TYPE, "gen"));
+            context.registerService(SerializerFactory.class, Mockito.mock(SerializerFactory.class),
+                    Collections.<String, Object>singletonMap(FactoryCache.PROPERTY_TYPE, "ser"));
+
+            final ProcessorConfigurationImpl config = new ProcessorConfigurationImpl("test", ImmutableMap.<String,Object>builder()
+                    .put("generatorType", "gen")
+                    .put("transformerTypes", new String[] {"missing", "late"})
+                    .put("transformer-missing.component-optional", true)
+                    .put("transformer-late.component-optional", true)
+                    .put("serializerType", "ser")
+                    .build());
+
+            final PipelineTemplate template = cache.getPipelineTemplate(config);
+            assertEquals(0, template.getTransformerCount());
+            assertSame(template, cache.getPipelineTemplate(config));
+
+            final FactoryRegistry registry = cache.getRegistry();
+            final TransformerFactory factory = Mockito.mock(TransformerFactory.class);
+            final Transformer transformer = Mockito.mock(Transformer.class);
+            Mockito.when(factory.createTransformer()).thenReturn(transformer);
+            context.registerService(TransformerFactory.class, factory,
+                    Collections.<String, Object>singletonMap(FactoryCache.PROPERTY_TYPE, "late"));
+
+            assertTrue(cache.getRegistry().getGeneration() > registry.getGeneration());
+            assertNull(registry.getTransformerFactory("late"));
+            assertSame(factory, cache.getRegistry().getTransformerFactory("late"));
+
+            final PipelineTemplate updated = cache.getPipelineTemplate(config);
+            assertNotSame(template, updated);
+            assertEquals(1, updated.getTransformerCount());
+            assertEquals("late", updated.getTransformerConfiguration(0).getType());
+            assertSame(transformer, updated.createTransformer(0));
+        } finally {
+            cache.stop();
+        }
+    }
+
+    @Test
+    public void testRecycleTransformers() throws InvalidSyntaxException {
+        final FactoryCache cache = new FactoryCache(context.bundleContext());
+
+        final Transformer recyclable = Mockito.mock(Transformer.class, Mockito.withSettings().extraInterfaces(Recyclable.class));
+        Mockito.when(((Recyclable)recyclable).reset()).thenReturn(true);
+        final Transformer created = Mockito.mock(Transformer.class);
+        final TransformerFactory factory = Mockito.mock(TransformerFactory.class);
+        Mockito.when(factory.createTransformer()).thenReturn(created);
+
+        // components which are not recyclable are not pooled
+        cache.recycle(factory, created);
+        assertEquals(0, cache.getPoolSize(factory));
+
+        // a recycled component is handed out again
+        cache.recycle(factory, recyclable);
+        assertEquals(1, cache.getPoolSize(factory));
+        assertSame(recyclable, cache.createTransformer(factory));
+        assertEquals(0, cache.getPoolSize(factory));
+        assertSame(created, cache.createTransformer(factory));
+
+        // components which can't be reset are dropped
+        Mockito.when(((Recyclable)recyclable).reset()).thenReturn(false);
+        cache.recycle(factory, recyclable);
+        assertEquals(0, cache.getPoolSize(factory));
+
+        // the pool is bounded
+        Mockito.when(((Recyclable)recyclable).reset()).thenReturn(true);
+        for(int i=0; i<ComponentPool.MAX_SIZE + 1; i++) {
+            cache.recycle(factory, recyclable);
+        }
+        assertEquals(ComponentPool.MAX_SIZE, cache.getPoolSize(factory));
     }
 }
@@ -0,0 +1,77 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.sling.rewriter.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.apache.sling.api.SlingHttpServletRequest;
+import org.apache.sling.api.request.RequestPathInfo;
+import org.apache.sling.rewriter.ProcessorConfiguration;
+import org.junit.Test;
+import org.mockito.Mockito;
+
+public class MatchCacheTest {
+
+    private static ServletProcessingContext context(final String extension, final String path) {
+        final RequestPathInfo info = Mockito.mock(RequestPathInfo.class);
+        Mockito.when(info.getExtension()).thenReturn(extension);
+        Mockito.when(info.getResourcePath()).thenReturn(path);
+        final SlingHttpServletRequest request = Mockito.mock(SlingHttpServletRequest.class);
+        Mockito.when(request.getRequestPathInfo()).thenReturn(info);
+        return new ServletProcessingContext(request, null, null, "text/html");
+    }
+
+    private static MatchCache.Entry entry() {
+        return new MatchCache.Entry(Collections.<ProcessorConfiguration>emptyList());
+    }
+
+    @Test
+    public void testKeys() {
+        final ProcessorConfigurationIndex index = new ProcessorConfigurationIndex(Arrays.<ProcessorConfiguration>asList(
+                new ProcessorConfigurationImpl(null, new String[] {"/content/site"}, null, null, null, 1, false)));
+        final MatchCache cache = new MatchCache(index, TransformerFactoryServiceTracker.EMPTY_DOUBLE_ENTRY_ARRAY, 8);
+
+        final MatchCache.Entry entry = entry();
+        cache.put(cache.createKey(context("html", "/content/site/a")), entry);
+
+        // same shape, the path matches the same prefixes
+        assertSame(entry, cache.get(cache.createKey(context("html", "/content/site/b"))));
+        assertNull(cache.get(cache.createKey(context("json", "/content/site/a"))));
+        assertNull(cache.get(cache.createKey(context("html", "/content/other"))));
+    }
+
+    @Test
+    public void testEviction() {
+        final MatchCache cache = new MatchCache(ProcessorConfigurationIndex.EMPTY,
+                TransformerFactoryServiceTracker.EMPTY_DOUBLE_ENTRY_ARRAY, 2);
+
+        cache.put(cache.createKey(context("a", null)), entry());
+        cache.put(cache.createKey(context("b", null)), entry());
+        assertNotNull(cache.get(cache.createKey(context("a", null))));
+
+        // the recently used entry survives
+        cache.put(cache.createKey(context("c", null)), entry());
+        assertEquals(2, cache.size());
+        assertNotNull(cache.get(cache.createKey(context("a", null))));
+    }
+}
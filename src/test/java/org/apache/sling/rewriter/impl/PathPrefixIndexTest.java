@@ -0,0 +1,81 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.sling.rewriter.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+
+import org.junit.Test;
+
+public class PathPrefixIndexTest {
+
+    private static BitSet bits(final int... positions) {
+        final BitSet result = new BitSet();
+        for(final int pos : positions) {
+            result.set(pos);
+        }
+        return result;
+    }
+
+    @Test
+    public void testMatch() {
+        final PathPrefixIndex index = new PathPrefixIndex(Arrays.asList(
+                new String[] {"/content/site", "/apps"},
+                new String[] {"/content"},
+                null,
+                new String[] {"/var", "*"},
+                new String[] {"/content/site/en"}));
+
+        assertTrue(index.isRestricted());
+        assertEquals(bits(0, 1, 2, 3, 4), index.match("/content/site/en/page"));
+        assertEquals(bits(0, 1, 2, 3), index.match("/content/site"));
+        assertEquals(bits(1, 2, 3), index.match("/content/other"));
+        assertEquals(bits(0, 2, 3), index.match("/apps/test"));
+        assertEquals(bits(2, 3), index.match("/libs"));
+        assertEquals(bits(2, 3), index.match(null));
+
+        // the results are computed up front and shared
+        assertSame(index.match("/content/site/en/a"), index.match("/content/site/en/b"));
+        assertSame(index.match("/libs"), index.match(null));
+    }
+
+    @Test
+    public void testMatches() {
+        final PathPrefixIndex index = new PathPrefixIndex(Collections.singletonList(new String[] {"/content/a", "/content/b", "/apps"}));
+
+        assertTrue(index.matches("/content/b/page"));
+        assertTrue(index.matches("/apps"));
+        assertFalse(index.matches("/content/c"));
+        assertFalse(index.matches("/content"));
+        assertFalse(index.matches(null));
+    }
+
+    @Test
+    public void testUnrestricted() {
+        final PathPrefixIndex index = new PathPrefixIndex(Arrays.asList(new String[0], new String[] {""}));
+
+        assertTrue(index.isRestricted());
+        assertEquals(bits(0, 1), index.match("/content"));
+        assertTrue(index.matches(null));
+    }
+}
@@ -22,6 +22,7 @@ import static org.apache.sling.rewriter.impl.ProcessorConfigurationImpl.PROPERTY
 import static org.apache.sling.rewriter.impl.ProcessorConfigurationImpl.PROPERTY_RESOURCE_TYPES;
 import static org.apache.sling.rewriter.impl.ProcessorConfigurationImpl.PROPERTY_SELECTORS;
 import static org.apache.sling.rewriter.impl.ProcessorConfigurationImpl.PROPERTY_UNWRAP_RESOURCES;
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 import static org.mockito.Mockito.when;
@@ -58,7 +59,11 @@ public class ProcessorConfigurationImplTest {
     }
     
     private ProcessorConfigurationImpl buildConfig(Map<String,Object> configProps) {
-        Resource configResoruce = context.create().resource("/apps/myapp/rewriter/config", configProps);
+        return buildConfig("config", configProps);
+    }
+
+    private ProcessorConfigurationImpl buildConfig(String name, Map<String,Object> configProps) {
+        Resource configResoruce = context.create().resource("/apps/myapp/rewriter/" + name, configProps);
         return new ProcessorConfigurationImpl(configResoruce);
     }
     
@@ -140,6 +145,36 @@ public class ProcessorConfigurationImplTest {
                 PROPERTY_UNWRAP_RESOURCES, true));
     }
 
+    @Test
+    public void testMatchResourceSuperTypeWithRequestHierarchy() {
+        context.create().resource("/apps/type/1", ImmutableMap.<String, Object>of("sling:resourceSuperType", "type/base"));
+        context.currentResource(context.create().resource("/content/test",
+                ImmutableMap.<String, Object>of("sling:resourceType", "type/1")));
+        final ServletProcessingContext servletContext = new ServletProcessingContext(context.request(),
+                context.response(), context.response(), "text/html");
+
+        assertTrue(buildConfig(ImmutableMap.<String,Object>of(PROPERTY_RESOURCE_TYPES, new String[] {"type/2", "/libs/type/base"}))
+                .match(servletContext));
+        assertFalse(buildConfig("config2", ImmutableMap.<String,Object>of(PROPERTY_RESOURCE_TYPES, new String[] {"type/2"}))
+                .match(servletContext));
+    }
+
+    @Test
+    public void testMatchUnwrappedResourceTypeWithRequestHierarchy() {
+        Resource resource = context.create().resource("/content/test", ImmutableMap.<String, Object>of("sling:resourceType", "type/1"));
+        context.currentResource(new ResourceWrapper(resource) {
+            @Override
+            public String getResourceType() { return "/type/override/1"; }
+        });
+        final ServletProcessingContext servletContext = new ServletProcessingContext(context.request(),
+                context.response(), context.response(), "text/html");
+
+        assertFalse(buildConfig(ImmutableMap.<String,Object>of(PROPERTY_RESOURCE_TYPES, new String[] {"type/1"}))
+                .match(servletContext));
+        assertTrue(buildConfig("config2", ImmutableMap.<String,Object>of(PROPERTY_RESOURCE_TYPES, new String[] {"type/1"},
+                PROPERTY_UNWRAP_RESOURCES, true)).match(servletContext));
+    }
+
     @Test
     public void testMatchPathMismatch() {
         context.requestPathInfo().setResourcePath("/content/test");
@@ -175,6 +210,38 @@ public class ProcessorConfigurationImplTest {
         assertMatch(ImmutableMap.<String,Object>of(PROPERTY_SELECTORS, new String[] {"sel1"}));
     }
 
+    @Test
+    public void testMatchLastSelector() {
+        context.requestPathInfo().setSelectorString("sel1.sel2");
+        assertMatch(ImmutableMap.<String,Object>of(PROPERTY_SELECTORS, new String[] {"sel3", "sel2"}));
+    }
+
+    @Test
+    public void testMatchSelectorPartialMismatch() {
+        context.requestPathInfo().setSelectorString("sel1.sel22");
+        assertNoMatch(ImmutableMap.<String,Object>of(PROPERTY_SELECTORS, new String[] {"sel", "sel2", "el1"}));
+    }
+
+    @Test
+    public void testConfigurationFromProperties() {
+        ProcessorConfigurationImpl config = new ProcessorConfigurationImpl("osgi", ImmutableMap.<String,Object>builder()
+                .put(PROPERTY_CONTENT_TYPES, "text/html")
+                .put("generatorType", "htmlparser")
+                .put("transformerTypes", new String[] {"linkchecker", "linkchecker"})
+                .put("transformer-linkchecker.maxLength", 5L)
+                .put("transformer-2.maxLength", 7L)
+                .put("serializerType", "htmlwriter")
+                .put("serializer-htmlwriter.flush", true)
+                .build());
+
+        assertTrue(config.isActive());
+        assertTrue(config.match(processingContext));
+        assertEquals("htmlparser", config.getGeneratorConfiguration().getType());
+        assertEquals(Long.valueOf(5), config.getTransformerConfigurations()[0].getConfiguration().get("maxLength", Long.class));
+        assertEquals(Long.valueOf(5), config.getTransformerConfigurations()[1].getConfiguration().get("maxLength", Long.class));
+        assertTrue(config.getSerializerConfiguration().getConfiguration().get("flush", false));
+    }
+
     @Test
     public void testNoMatchRequestAttribute() {
         context.request().setAttribute(ProcessorConfigurationImpl.ATTR_PIPELINE, "config2");
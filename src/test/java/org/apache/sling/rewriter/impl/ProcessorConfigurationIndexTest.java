@@ -0,0 +1,69 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with this
+ * work for additional information regarding copyright ownership. The ASF
+ * licenses this file to You under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.apache.sling.rewriter.impl;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.apache.sling.rewriter.ProcessorConfiguration;
+import org.junit.Test;
+
+public class ProcessorConfigurationIndexTest {
+
+    private static ProcessorConfiguration config(final String[] contentTypes, final String[] extensions, final int order) {
+        return new ProcessorConfigurationImpl(contentTypes, null, extensions, null, null, order, false);
+    }
+
+    @Test
+    public void testCandidates() {
+        final ProcessorConfiguration htmlOnly = config(new String[] {"text/html"}, new String[] {"html"}, 5);
+        final ProcessorConfiguration anyType = config(new String[] {"*"}, new String[] {"json"}, 4);
+        final ProcessorConfiguration xml = config(new String[] {"text/xml", "text/html"}, null, 3);
+        final ProcessorConfiguration all = config(null, null, 2);
+        final ProcessorConfigurationIndex index = new ProcessorConfigurationIndex(Arrays.asList(htmlOnly, anyType, xml, all));
+
+        assertEquals(Arrays.asList(htmlOnly, xml, all), index.getCandidates("text/html;charset=UTF-8", "html"));
+        assertEquals(Arrays.asList(htmlOnly, xml, all), index.getCandidates(null, "html"));
+        assertEquals(Arrays.asList(xml, all), index.getCandidates("text/html", "txt"));
+        assertEquals(Arrays.asList(xml, all), index.getCandidates("text/html", null));
+        assertEquals(Arrays.asList(anyType, all), index.getCandidates("application/json", "json"));
+        assertEquals(Arrays.asList(xml, all), index.getCandidates("text/xml", "xml"));
+        assertEquals(Collections.singletonList(all), index.getCandidates("text/plain", null));
+    }
+
+    @Test
+    public void testCandidatesByPath() {
+        final ProcessorConfiguration site = new ProcessorConfigurationImpl(null, new String[] {"/content/site"}, null, null, null, 3, false);
+        final ProcessorConfiguration any = new ProcessorConfigurationImpl(null, new String[] {"/apps", "*"}, null, null, null, 2, false);
+        final ProcessorConfiguration html = new ProcessorConfigurationImpl(null, new String[] {"/content"}, new String[] {"html"}, null, null, 1, false);
+        final ProcessorConfigurationIndex index = new ProcessorConfigurationIndex(Arrays.asList(site, any, html));
+
+        assertEquals(Arrays.asList(site, any, html), index.getCandidates("text/html", "html", "/content/site/page"));
+        assertEquals(Arrays.asList(any, html), index.getCandidates("text/html", "html", "/content/other"));
+        assertEquals(Arrays.asList(site, any), index.getCandidates("text/html", "json", "/content/site"));
+        assertEquals(Collections.singletonList(any), index.getCandidates("text/html", "html", null));
+    }
+
+    @Test
+    public void testEmpty() {
+        final List<ProcessorConfiguration> candidates = ProcessorConfigurationIndex.EMPTY.getCandidates("text/html", "html", "/content");
+        assertEquals(0, candidates.size());
+    }
+}
@@ -17,20 +17,30 @@
 
 package org.apache.sling.rewriter.impl;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.when;
 
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
 import java.util.Arrays;
+import java.util.List;
 
 import org.apache.sling.api.resource.LoginException;
+import org.apache.sling.api.resource.ModifiableValueMap;
 import org.apache.sling.api.resource.PersistenceException;
 import org.apache.sling.api.resource.Resource;
 import org.apache.sling.api.resource.ResourceResolver;
 import org.apache.sling.api.resource.ValueMap;
 import org.apache.sling.api.resource.observation.ResourceChange;
 import org.apache.sling.api.resource.observation.ResourceChange.ChangeType;
+import org.apache.sling.rewriter.ProcessorConfiguration;
 import org.apache.sling.rewriter.ProcessorManager;
 import org.apache.sling.serviceusermapping.ServiceUserMapped;
 import org.apache.sling.testing.mock.sling.junit.SlingContext;
@@ -91,6 +101,144 @@ public class ProcessorManagerImplTest {
                 createConfigPath("/apps/1"), 1);
     }
     
+    @Test
+    public void testConfigurationsAreSnapshots() throws InterruptedException {
+        List<ProcessorConfiguration> before = processorManager.getProcessorConfigurations();
+
+        ResourceChange resourceChange = mock(ResourceChange.class);
+        when(resourceChange.getPath()).thenReturn(createConfigPath("/apps/2"));
+        when(resourceChange.getType()).thenReturn(ChangeType.REMOVED);
+        processorManager.onChange(Arrays.asList(resourceChange));
+        Thread.sleep(1000);
+
+        assertEquals(3, before.size());
+        assertEquals(2, processorManager.getProcessorConfigurations().size());
+    }
+
+    @Test(expected = UnsupportedOperationException.class)
+    public void testConfigurationsAreImmutable() {
+        processorManager.getProcessorConfigurations().clear();
+    }
+
+    @Test
+    public void testChangesAreCoalesced() throws InterruptedException {
+        ResourceChange removeChange = mock(ResourceChange.class);
+        when(removeChange.getPath()).thenReturn(createConfigPath("/apps/2"));
+        when(removeChange.getType()).thenReturn(ChangeType.REMOVED);
+        ResourceChange removeOtherChange = mock(ResourceChange.class);
+        when(removeOtherChange.getPath()).thenReturn(createConfigPath("/apps/3"));
+        when(removeOtherChange.getType()).thenReturn(ChangeType.REMOVED);
+        ResourceChange updateChange = mock(ResourceChange.class);
+        when(updateChange.getPath()).thenReturn(createConfigPath("/apps/2") + "/child");
+        when(updateChange.getType()).thenReturn(ChangeType.CHANGED);
+
+        processorManager.onChange(Arrays.asList(removeChange, removeOtherChange));
+        processorManager.onChange(Arrays.asList(updateChange));
+        Thread.sleep(1000);
+
+        // the last change of /apps/2 wins
+        assertEquals(2, processorManager.getProcessorConfigurations().size());
+        assertOrderRT((ProcessorConfigurationImpl) processorManager.getProcessorConfigurations().get(0),
+                createConfigPath("/apps/2"), 2);
+        assertOrderRT((ProcessorConfigurationImpl) processorManager.getProcessorConfigurations().get(1),
+                createConfigPath("/apps/1"), 1);
+    }
+
+    @Test
+    public void testSnapshotIsWritten() throws IOException, InterruptedException {
+        // the snapshot is written in the background
+        Thread.sleep(1000);
+        File snapshot = context.bundleContext().getDataFile("processors.txt");
+        List<String> lines = Files.readAllLines(snapshot.toPath(), StandardCharsets.UTF_8);
+        assertEquals(String.join(",", resourceResolver.getSearchPath()), lines.get(0));
+        assertEquals(5, lines.size());
+        assertTrue(lines.contains(createConfigPath("/apps/2")));
+    }
+
+    @Test
+    public void testSnapshotIsVerified() throws IOException, InterruptedException {
+        File snapshot = context.bundleContext().getDataFile("processors.txt");
+        Files.write(snapshot.toPath(), Arrays.asList(String.join(",", resourceResolver.getSearchPath()),
+                createConfigPath("/apps/1")), StandardCharsets.UTF_8);
+
+        ProcessorManagerImpl restarted = context.registerInjectActivateService(new ProcessorManagerImpl());
+        Thread.sleep(1000);
+
+        assertEquals(3, restarted.getProcessorConfigurations().size());
+        assertEquals(5, Files.readAllLines(snapshot.toPath(), StandardCharsets.UTF_8).size());
+        // the snapshot is replaced, no temporary files are left
+        assertArrayEquals(new String[] {"processors.txt"}, snapshot.getParentFile().list());
+    }
+
+    @Test
+    public void testFactoryConfiguration() throws InterruptedException {
+        FactoryProcessorConfiguration factoryConfig = context.registerInjectActivateService(new FactoryProcessorConfiguration(),
+                ImmutableMap.<String, Object>builder().put("service.pid", FactoryProcessorConfiguration.FACTORY_PID + ".osgi")
+                        .put("name", "osgi-html").put("contentTypes", "text/html").put("order", 20)
+                        .put("generatorType", "htmlparser").put("serializerType", "htmlwriter").build());
+
+        assertEquals(4, processorManager.getProcessorConfigurations().size());
+        assertEquals(20, ((ProcessorConfigurationImpl) processorManager.getProcessorConfigurations().get(0)).getOrder());
+
+        // removing repository configurations keeps the configuration
+        ResourceChange resourceChange = mock(ResourceChange.class);
+        when(resourceChange.getPath()).thenReturn("/apps/2");
+        when(resourceChange.getType()).thenReturn(ChangeType.REMOVED);
+        processorManager.onChange(Arrays.asList(resourceChange));
+        Thread.sleep(1000);
+        assertEquals(3, processorManager.getProcessorConfigurations().size());
+
+        processorManager.unbindFactoryProcessorConfiguration(factoryConfig);
+        assertEquals(2, processorManager.getProcessorConfigurations().size());
+    }
+
+    @Test
+    public void testFactoryConfigurationWithSlashInName() {
+        FactoryProcessorConfiguration factoryConfig = context.registerInjectActivateService(new FactoryProcessorConfiguration(),
+                ImmutableMap.<String, Object>builder().put("service.pid", FactoryProcessorConfiguration.FACTORY_PID + ".slash")
+                        .put("name", "site/html").put("contentTypes", "text/html").put("order", 20)
+                        .put("generatorType", "htmlparser").put("serializerType", "htmlwriter").build());
+        FactoryProcessorConfiguration otherConfig = context.registerInjectActivateService(new FactoryProcessorConfiguration(),
+                ImmutableMap.<String, Object>builder().put("service.pid", FactoryProcessorConfiguration.FACTORY_PID + ".other")
+                        .put("name", "html").put("contentTypes", "text/html").put("order", 10)
+                        .put("generatorType", "htmlparser").put("serializerType", "htmlwriter").build());
+
+        // the configurations are kept by their names and don't override each other
+        assertEquals(5, processorManager.getProcessorConfigurations().size());
+
+        processorManager.unbindFactoryProcessorConfiguration(factoryConfig);
+        assertEquals(4, processorManager.getProcessorConfigurations().size());
+        assertEquals(10, ((ProcessorConfigurationImpl) processorManager.getProcessorConfigurations().get(0)).getOrder());
+
+        processorManager.unbindFactoryProcessorConfiguration(otherConfig);
+        assertEquals(3, processorManager.getProcessorConfigurations().size());
+    }
+
+    @Test
+    public void testSuperTypeChangeUpdatesMatchingConfigurations() throws PersistenceException {
+        FactoryProcessorConfiguration factoryConfig = context.registerInjectActivateService(new FactoryProcessorConfiguration(),
+                ImmutableMap.<String, Object>builder().put("service.pid", FactoryProcessorConfiguration.FACTORY_PID + ".types")
+                        .put("name", "base-html").put("contentTypes", "text/html").put("resourceTypes", "myapp/base")
+                        .put("generatorType", "htmlparser").put("serializerType", "htmlwriter").build());
+        Resource component = context.create().resource("/apps/myapp/page");
+        context.create().resource("/apps/myapp/base");
+        context.currentResource(context.create().resource("/content/page",
+                ImmutableMap.<String, Object>of("sling:resourceType", "myapp/page")));
+
+        assertFalse(processorManager.getMatchingProcessorConfigurations(new ServletProcessingContext(context.request(),
+                context.response(), context.response(), "text/html")).contains(factoryConfig.getConfiguration()));
+
+        component.adaptTo(ModifiableValueMap.class).put("sling:resourceSuperType", "myapp/base");
+        resourceResolver.commit();
+        ResourceChange resourceChange = mock(ResourceChange.class);
+        when(resourceChange.getPath()).thenReturn("/apps/myapp/page");
+        when(resourceChange.getType()).thenReturn(ChangeType.CHANGED);
+        processorManager.onChange(Arrays.asList(resourceChange));
+
+        assertTrue(processorManager.getMatchingProcessorConfigurations(new ServletProcessingContext(context.request(),
+                context.response(), context.response(), "text/html")).contains(factoryConfig.getConfiguration()));
+    }
+
     @Test
     public void testRemoveProcessorWithNonExistingPath() throws LoginException, InvalidSyntaxException, InterruptedException {
         ResourceChange resourceChange = mock(ResourceChange.class);
@@ -194,6 +342,29 @@ public class ProcessorManagerImplTest {
 
     }
 
+    @Test
+    public void testMatchingConfigurationsAreCached() throws InterruptedException {
+        context.currentResource(context.create().resource("/content/test",
+                ImmutableMap.<String, Object>of("sling:resourceType", createConfigPath("/apps/2"))));
+
+        List<ProcessorConfiguration> matching = processorManager.getMatchingProcessorConfigurations(createProcessingContext());
+        assertEquals(1, matching.size());
+        assertOrderRT((ProcessorConfigurationImpl) matching.get(0), createConfigPath("/apps/2"), 2);
+        assertSame(matching, processorManager.getMatchingProcessorConfigurations(createProcessingContext()));
+
+        ResourceChange resourceChange = mock(ResourceChange.class);
+        when(resourceChange.getPath()).thenReturn(createConfigPath("/apps/2"));
+        when(resourceChange.getType()).thenReturn(ChangeType.REMOVED);
+        processorManager.onChange(Arrays.asList(resourceChange));
+        Thread.sleep(1000);
+
+        assertEquals(0, processorManager.getMatchingProcessorConfigurations(createProcessingContext()).size());
+    }
+
+    ServletProcessingContext createProcessingContext() {
+        return new ServletProcessingContext(context.request(), context.response(), context.response(), "text/html");
+    }
+
     void createConfigs(ResourceResolver resolver) throws PersistenceException {
         for (int i = 1; i < 4; i++) {
             createConfig(resolver, Integer.toString(i), i, true);
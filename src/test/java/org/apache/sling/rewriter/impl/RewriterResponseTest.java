@@ -0,0 +1,203 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with this
+ * work for additional information regarding copyright ownership. The ASF
+ * licenses this file to You under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.apache.sling.rewriter.impl;
+
+import static org.apache.sling.rewriter.impl.ProcessorConfigurationImpl.PROPERTY_CONTENT_TYPES;
+import static org.apache.sling.rewriter.impl.ProcessorConfigurationImpl.PROPERTY_PASS_THROUGH_CONTENT_TYPE;
+import static org.apache.sling.rewriter.impl.ProcessorConfigurationImpl.PROPERTY_PASS_THROUGH_LIMIT;
+import static org.apache.sling.rewriter.impl.ProcessorConfigurationImpl.PROPERTY_PASS_THROUGH_NON_MARKUP;
+import static org.junit.Assert.assertEquals;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.util.Collections;
+import java.util.Map;
+
+import javax.servlet.ServletOutputStream;
+
+import org.apache.sling.api.SlingHttpServletRequest;
+import org.apache.sling.api.SlingHttpServletResponse;
+import org.apache.sling.api.request.RequestProgressTracker;
+import org.apache.sling.api.wrappers.SlingHttpServletRequestWrapper;
+import org.apache.sling.api.wrappers.SlingHttpServletResponseWrapper;
+import org.apache.sling.rewriter.ProcessingContext;
+import org.apache.sling.rewriter.ProcessorConfiguration;
+import org.apache.sling.rewriter.ProcessorManager;
+import org.apache.sling.rewriter.Serializer;
+import org.apache.sling.rewriter.impl.components.Utf8Html5SerializerFactory;
+import org.apache.sling.testing.mock.sling.junit.SlingContext;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.mockito.Matchers;
+import org.mockito.Mockito;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import com.google.common.collect.ImmutableMap;
+
+public class RewriterResponseTest {
+
+    @Rule
+    public SlingContext context = new SlingContext();
+
+    /** The output buffered by the pipeline. */
+    private StringWriter pipelineOutput;
+
+    private PipelineImpl pipeline;
+
+    @Before
+    public void setup() throws IOException {
+        pipelineOutput = new StringWriter();
+        pipeline = Mockito.mock(PipelineImpl.class);
+        Mockito.when(pipeline.getWriter()).thenReturn(new PrintWriter(pipelineOutput));
+        Mockito.when(pipeline.passThrough(Matchers.any(Writer.class))).thenAnswer(new Answer<Boolean>() {
+
+            @Override
+            public Boolean answer(final InvocationOnMock invocation) throws IOException {
+                ((Writer)invocation.getArguments()[0]).write(pipelineOutput.toString());
+                return true;
+            }
+        });
+    }
+
+    private RewriterResponse createResponse(final Map<String, Object> configProps) {
+        return createResponse(configProps, context.response(), null);
+    }
+
+    /**
+     * Create a response, the serializer is initialized when the pipeline is set up.
+     */
+    private RewriterResponse createResponse(final Map<String, Object> configProps,
+            final SlingHttpServletResponse delegatee,
+            final Serializer serializer) {
+        final ProcessorConfiguration config = new ProcessorConfigurationImpl(
+                context.create().resource("/apps/myapp/rewriter/config", configProps));
+        final ProcessorManager manager = Mockito.mock(ProcessorManager.class);
+        Mockito.when(manager.getProcessorConfigurations()).thenReturn(Collections.singletonList(config));
+        Mockito.when(manager.getProcessor(Matchers.eq(config), Matchers.any(ProcessingContext.class))).thenAnswer(new Answer<PipelineImpl>() {
+
+            @Override
+            public PipelineImpl answer(final InvocationOnMock invocation) throws IOException {
+                if ( serializer != null ) {
+                    serializer.init((ProcessingContext)invocation.getArguments()[1], ProcessingComponentConfigurationImpl.EMPTY);
+                }
+                return pipeline;
+            }
+        });
+        final RequestProgressTracker tracker = Mockito.mock(RequestProgressTracker.class);
+        final SlingHttpServletRequest request = new SlingHttpServletRequestWrapper(context.request()) {
+
+            @Override
+            public RequestProgressTracker getRequestProgressTracker() {
+                return tracker;
+            }
+        };
+        return new RewriterResponse(request, delegatee, manager);
+    }
+
+    @Test
+    public void testMarkupIsProcessed() throws IOException {
+        final RewriterResponse response = createResponse(ImmutableMap.<String, Object>of(PROPERTY_PASS_THROUGH_NON_MARKUP, true));
+        final PrintWriter writer = response.getWriter();
+        writer.write("\n  <html>");
+        writer.write("{}</html>");
+        writer.flush();
+
+        assertEquals("\n  <html>{}</html>", pipelineOutput.toString());
+        assertEquals("", context.response().getOutputAsString());
+    }
+
+    @Test
+    public void testPassThroughNonMarkup() throws IOException {
+        final RewriterResponse response = createResponse(ImmutableMap.<String, Object>of(PROPERTY_PASS_THROUGH_NON_MARKUP, true));
+        final PrintWriter writer = response.getWriter();
+        writer.write("\n  ");
+        writer.write("{\"a\":\"<b>\"}");
+        writer.flush();
+
+        assertEquals("\n  {\"a\":\"<b>\"}", context.response().getOutputAsString());
+    }
+
+    @Test
+    public void testPassThroughLimit() throws IOException {
+        final RewriterResponse response = createResponse(ImmutableMap.<String, Object>of(PROPERTY_PASS_THROUGH_LIMIT, 12L));
+        final PrintWriter writer = response.getWriter();
+        writer.write("<p>1234</p>");
+        assertEquals("", context.response().getOutputAsString());
+        writer.write("<p>5678</p>");
+        writer.flush();
+
+        assertEquals("<p>1234</p><p>5678</p>", context.response().getOutputAsString());
+    }
+
+    @Test
+    public void testPassThroughContentTypeMismatch() throws IOException {
+        final RewriterResponse response = createResponse(ImmutableMap.<String, Object>of(
+                PROPERTY_CONTENT_TYPES, new String[] {"text/html"},
+                PROPERTY_PASS_THROUGH_CONTENT_TYPE, true));
+        final PrintWriter writer = response.getWriter();
+        writer.write("<p>1</p>");
+        response.setContentType("text/html;charset=UTF-8");
+        writer.write("<p>2</p>");
+        writer.flush();
+        assertEquals("", context.response().getOutputAsString());
+
+        response.setContentType("text/plain");
+        writer.write("<p>3</p>");
+        writer.flush();
+        assertEquals("<p>1</p><p>2</p><p>3</p>", context.response().getOutputAsString());
+    }
+
+    @Test
+    public void testPassThroughWithUtf8Serializer() throws IOException {
+        // like a servlet container, only one of writer and output stream can be used
+        final SlingHttpServletResponse strictResponse = new SlingHttpServletResponseWrapper(context.response()) {
+
+            private boolean writerUsed;
+
+            private boolean streamUsed;
+
+            @Override
+            public PrintWriter getWriter() throws IOException {
+                if ( streamUsed ) {
+                    throw new IllegalStateException("getOutputStream() has already been called");
+                }
+                writerUsed = true;
+                return super.getWriter();
+            }
+
+            @Override
+            public ServletOutputStream getOutputStream() throws IOException {
+                if ( writerUsed ) {
+                    throw new IllegalStateException("getWriter() has already been called");
+                }
+                streamUsed = true;
+                return super.getOutputStream();
+            }
+        };
+        final RewriterResponse response = createResponse(ImmutableMap.<String, Object>of(PROPERTY_PASS_THROUGH_NON_MARKUP, true),
+                strictResponse, new Utf8Html5SerializerFactory().createSerializer());
+        final PrintWriter writer = response.getWriter();
+        writer.write("{\"a\":1}");
+        writer.flush();
+
+        assertEquals("{\"a\":1}", context.response().getOutputAsString());
+    }
+}
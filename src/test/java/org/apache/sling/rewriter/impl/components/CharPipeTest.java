@@ -0,0 +1,124 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with this
+ * work for additional information regarding copyright ownership. The ASF
+ * licenses this file to You under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.apache.sling.rewriter.impl.components;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class CharPipeTest {
+
+    private ExecutorService executor;
+
+    @Before
+    public void init() {
+        executor = Executors.newSingleThreadExecutor();
+    }
+
+    @After
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    private Future<String> readAll(final Reader reader) {
+        return executor.submit(new Callable<String>() {
+
+            @Override
+            public String call() throws IOException {
+                final StringBuilder sb = new StringBuilder();
+                final char[] buffer = new char[5];
+                int n;
+                while ( (n = reader.read(buffer, 0, buffer.length)) != -1 ) {
+                    sb.append(buffer, 0, n);
+                }
+                return sb.toString();
+            }
+        });
+    }
+
+    @Test
+    public void testWrapAroundWithBackpressure() throws Exception {
+        // a pipe much smaller than the content forces the writer to wait for the reader
+        final CharPipe pipe = new CharPipe(16);
+        final Future<String> result = readAll(pipe.getReader());
+
+        final StringBuilder expected = new StringBuilder();
+        final Writer writer = pipe.getWriter();
+        for(int i=0; i<1000; i++) {
+            final String s = "<p>" + i + "</p>";
+            writer.write(s);
+            expected.append(s);
+        }
+        writer.close();
+
+        assertEquals(expected.toString(), result.get());
+    }
+
+    @Test
+    public void testAwaitIdle() throws Exception {
+        final CharPipe pipe = new CharPipe(64);
+        final Future<String> result = readAll(pipe.getReader());
+
+        final Writer writer = pipe.getWriter();
+        writer.write("abc");
+        writer.flush();
+        assertTrue(pipe.awaitIdle());
+        assertFalse(pipe.getReader().ready());
+        writer.close();
+
+        assertEquals("abc", result.get());
+    }
+
+    @Test
+    public void testAbortedByReader() throws Exception {
+        final CharPipe pipe = new CharPipe(16);
+        pipe.getReader().close();
+        try {
+            pipe.getWriter().write("abc");
+            fail("Writing to an aborted pipe must fail.");
+        } catch (final IOException expected) {
+            // expected
+        }
+        assertFalse(pipe.awaitIdle());
+    }
+
+    @Test(expected = IOException.class)
+    public void testAbortedByWriter() throws Throwable {
+        final CharPipe pipe = new CharPipe(16);
+        final Future<String> result = readAll(pipe.getReader());
+        pipe.abort();
+        try {
+            result.get();
+        } catch (final ExecutionException ee) {
+            throw ee.getCause();
+        }
+    }
+}
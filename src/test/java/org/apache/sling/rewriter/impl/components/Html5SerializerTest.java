@@ -24,6 +24,7 @@ import java.io.PrintWriter;
 import java.io.StringWriter;
 import java.util.Collections;
 
+import org.apache.sling.api.SlingHttpServletResponse;
 import org.apache.sling.api.wrappers.ValueMapDecorator;
 import org.apache.sling.rewriter.ProcessingContext;
 import org.apache.sling.rewriter.impl.ProcessingComponentConfigurationImpl;
@@ -182,4 +183,96 @@ public class Html5SerializerTest {
         testSerializer.startPrefixMapping("s", "1001");
         assertEquals("", writer.toString());
     }
+
+    @Test
+    public void testMinimalEscaping() throws IOException, SAXException {
+        final SlingHttpServletResponse response = Mockito.mock(SlingHttpServletResponse.class);
+        Mockito.when(response.getCharacterEncoding()).thenReturn("UTF-8");
+        Mockito.when(context.getResponse()).thenReturn(response);
+        testSerializer.init(context, new ProcessingComponentConfigurationImpl("/apps/config",
+                new ValueMapDecorator(Collections.<String, Object>singletonMap(Html5SerializerFactory.PROPERTY_ESCAPING,
+                        Html5SerializerFactory.ESCAPING_MINIMAL))));
+
+        AttributesImpl atts = new AttributesImpl();
+        atts.addAttribute("", "title", "", "string", "\"Gr\u00fc\u00dfe\"");
+        testSerializer.startElement("", "p", "p", atts);
+        testSerializer.characters("\"Gr\u00fc\u00dfe\" & \u2602".toCharArray(), 0, 11);
+
+        assertEquals("<p title=\"&quot;Gr\u00fc\u00dfe&quot;\">\"Gr\u00fc\u00dfe\" &amp; \u2602", writer.toString());
+    }
+
+    @Test
+    public void testConfiguredDroppedAttributes() throws IOException, SAXException {
+        testSerializer.init(context, new ProcessingComponentConfigurationImpl("/apps/config",
+                new ValueMapDecorator(Collections.<String, Object>singletonMap(Html5SerializerFactory.PROPERTY_DROP_ATTRIBUTES,
+                        new String[] {"table/border", "*/align"}))));
+
+        AttributesImpl table = new AttributesImpl();
+        table.addAttribute("", "border", "", "string", "1");
+        table.addAttribute("", "align", "", "string", "center");
+        table.addAttribute("", "class", "", "string", "data");
+        testSerializer.startElement("", "table", "table", table);
+
+        AttributesImpl a = new AttributesImpl();
+        a.addAttribute("", "shape", "", "string", "rect");
+        a.addAttribute("", "align", "", "string", "left");
+        a.addAttribute("", "border", "", "string", "0");
+        testSerializer.startElement("", "a", "a", a);
+
+        assertEquals("<table class=\"data\"><a border=\"0\">", writer.toString());
+    }
+
+    @Test
+    public void testMinify() throws IOException, SAXException {
+        testSerializer.init(context, new ProcessingComponentConfigurationImpl("/apps/config",
+                new ValueMapDecorator(Collections.<String, Object>singletonMap(Html5SerializerFactory.PROPERTY_MINIFY, true))));
+
+        AttributesImpl atts = new AttributesImpl();
+        atts.addAttribute("", "class", "", "string", "teaser");
+        atts.addAttribute("", "title", "", "string", "a b");
+        atts.addAttribute("", "hidden", "", "string", "");
+        testSerializer.startElement("", "div", "div", atts);
+        final char[] comment = "[if IE]><p>IE</p><![endif]".toCharArray();
+        testSerializer.comment(comment, 0, comment.length);
+        testSerializer.comment(" note ".toCharArray(), 0, 6);
+        testSerializer.characters("\n  Tom &".toCharArray(), 0, 8);
+        testSerializer.characters("  Jerry\t\n".toCharArray(), 0, 9);
+        testSerializer.startElement("", "pre", "pre", new AttributesImpl());
+        testSerializer.characters(" a\n  b ".toCharArray(), 0, 7);
+        testSerializer.endElement("", "pre", "pre");
+        testSerializer.characters(" \n".toCharArray(), 0, 2);
+
+        atts = new AttributesImpl();
+        atts.addAttribute("", "src", "", "string", "/image.png");
+        atts.addAttribute("", "endSlash", "endSlash", null, null);
+        testSerializer.startElement("", "img", "img", atts);
+        testSerializer.endElement("", "img", "img");
+        testSerializer.endElement("", "div", "div");
+        testSerializer.endDocument();
+
+        assertEquals("<div class=teaser title=\"a b\" hidden><!--[if IE]><p>IE</p><![endif]-->"
+                + " Tom &amp; Jerry <pre> a\n  b </pre> <img src=/image.png /></div>", writer.toString());
+    }
+
+    @Test
+    public void testCommentsDroppedByDefault() throws SAXException {
+        final char[] comment = "[if IE]><p>IE</p><![endif]".toCharArray();
+        testSerializer.comment(comment, 0, comment.length);
+        testSerializer.characters("a  b".toCharArray(), 0, 4);
+        testSerializer.endDocument();
+
+        assertEquals("a  b", writer.toString());
+    }
+
+    @Test
+    public void testInvalidDroppedAttributes() {
+        try {
+            testSerializer.init(context, new ProcessingComponentConfigurationImpl("/apps/config",
+                    new ValueMapDecorator(Collections.<String, Object>singletonMap(Html5SerializerFactory.PROPERTY_DROP_ATTRIBUTES,
+                            new String[] {"border"}))));
+            fail();
+        } catch (IOException e) {
+            assertEquals("Invalid attribute rule 'border', expected element/attribute", e.getMessage());
+        }
+    }
 }
@@ -0,0 +1,102 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with this
+ * work for additional information regarding copyright ownership. The ASF
+ * licenses this file to You under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.apache.sling.rewriter.impl.components;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+
+import org.apache.commons.text.StringEscapeUtils;
+import org.junit.Test;
+
+public class HtmlEscaperTest {
+
+    private static String escape(final char[] buffer, final int offset, final int length) {
+        return escape(HtmlEscaper.HTML4, buffer, offset, length);
+    }
+
+    private static String escape(final HtmlEscaper escaper, final char[] buffer, final int offset, final int length) {
+        final StringWriter out = new StringWriter();
+        final PrintWriter writer = new PrintWriter(out);
+        escaper.escapeText(writer, buffer, offset, length);
+        writer.flush();
+        return out.toString();
+    }
+
+    private static String escape(final String value) {
+        return escape(HtmlEscaper.HTML4, value);
+    }
+
+    private static String escape(final HtmlEscaper escaper, final String value) {
+        final StringWriter out = new StringWriter();
+        final PrintWriter writer = new PrintWriter(out);
+        escaper.escapeAttribute(writer, value);
+        writer.flush();
+        return out.toString();
+    }
+
+    @Test
+    public void testEscapeRange() {
+        final char[] buffer = "<a href=\"x\">Tom & Jerry</a>".toCharArray();
+        assertEquals("Tom &amp; Jerry", escape(buffer, 12, 11));
+        assertEquals("&lt;a href=&quot;x&quot;&gt;", escape(buffer, 0, 12));
+        assertEquals("", escape(buffer, 3, 0));
+    }
+
+    @Test
+    public void testSameAsEscapeHtml4() {
+        final StringBuilder sb = new StringBuilder();
+        for(int c=0; c<=Character.MAX_VALUE; c++) {
+            sb.append((char)c);
+        }
+        // surrogate pair
+        sb.append("😀");
+        final String text = sb.toString();
+        final String expected = StringEscapeUtils.escapeHtml4(text);
+        assertEquals(expected, escape(text));
+        assertEquals(expected, escape(text.toCharArray(), 0, text.length()));
+    }
+
+    @Test
+    public void testNamedEntities() {
+        assertEquals("Hello World", escape("Hello World"));
+        assertEquals("caf&eacute; &euro;", escape("café €"));
+    }
+
+    @Test
+    public void testMinimalUnicode() {
+        final HtmlEscaper escaper = HtmlEscaper.minimal("UTF-8");
+        final String text = "Gr\u00fc\u00dfe <b>\"\u65e5\u672c\"</b> & \ud83d\ude03";
+        assertEquals("Gr\u00fc\u00dfe &lt;b&gt;\"\u65e5\u672c\"&lt;/b&gt; &amp; \ud83d\ude03",
+                escape(escaper, text.toCharArray(), 0, text.length()));
+        assertEquals("Gr\u00fc\u00dfe &lt;b&gt;&quot;\u65e5\u672c&quot;&lt;/b&gt; &amp; \ud83d\ude03",
+                escape(escaper, text));
+    }
+
+    @Test
+    public void testMinimalUnmappable() {
+        final HtmlEscaper escaper = HtmlEscaper.minimal("ISO-8859-1");
+        final String text = "Gr\u00fc\u00dfe \u65e5 \ud83d\ude03 \ud83d";
+        assertEquals("Gr\u00fc\u00dfe &#26085; &#128515; \ud83d",
+                escape(escaper, text.toCharArray(), 0, text.length()));
+        assertEquals("Gr\u00fc\u00dfe &#26085; &#128515; \ud83d", escape(escaper, text));
+
+        // unknown charsets fall back to the servlet default
+        assertEquals("&#26085;", escape(HtmlEscaper.minimal("no-such-charset"), "\u65e5"));
+    }
+}
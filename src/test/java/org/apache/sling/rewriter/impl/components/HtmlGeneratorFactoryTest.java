@@ -0,0 +1,252 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with this
+ * work for additional information regarding copyright ownership. The ASF
+ * licenses this file to You under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.apache.sling.rewriter.impl.components;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.sling.api.wrappers.ValueMapDecorator;
+import org.apache.sling.commons.html.impl.HtmlParserImpl;
+import org.apache.sling.rewriter.ProcessingContext;
+import org.apache.sling.rewriter.impl.ProcessingComponentConfigurationImpl;
+import org.apache.sling.rewriter.impl.components.HtmlGeneratorFactory.HtmlGenerator;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.mockito.Mockito;
+import org.xml.sax.Attributes;
+import org.xml.sax.SAXException;
+import org.xml.sax.helpers.DefaultHandler;
+
+public class HtmlGeneratorFactoryTest {
+
+    @Rule
+    public TemporaryFolder spillFolder = new TemporaryFolder();
+
+    private ExecutorService executor;
+
+    @Before
+    public void init() {
+        executor = Executors.newSingleThreadExecutor();
+    }
+
+    @After
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    private HtmlGenerator createGenerator(final Map<String, Object> generatorConfig, final StringWriter output) throws IOException {
+        final ProcessingContext context = Mockito.mock(ProcessingContext.class);
+        Mockito.when(context.getWriter()).thenReturn(new PrintWriter(output));
+
+        final Html5Serializer serializer = new Html5Serializer();
+        serializer.init(context, new ProcessingComponentConfigurationImpl("html5-serializer",
+                new ValueMapDecorator(Collections.<String, Object>emptyMap())));
+
+        final HtmlGenerator generator = new HtmlGenerator(new HtmlParserImpl(), executor,
+                new CharSegmentPool(HtmlGeneratorFactory.SEGMENT_SIZE, 0), spillFolder.getRoot());
+        generator.init(context, new ProcessingComponentConfigurationImpl("html-generator",
+                new ValueMapDecorator(generatorConfig)));
+        generator.setContentHandler(serializer);
+        return generator;
+    }
+
+    private String render(final Map<String, Object> generatorConfig, final String html) throws IOException, SAXException {
+        final StringWriter output = new StringWriter();
+        final HtmlGenerator generator = createGenerator(generatorConfig, output);
+        try {
+            final PrintWriter writer = generator.getWriter();
+            // write in small portions like a script would do
+            for(int i=0; i<html.length(); i+=7) {
+                writer.write(html, i, Math.min(7, html.length() - i));
+            }
+            writer.flush();
+            generator.finished();
+        } finally {
+            generator.dispose();
+        }
+        return output.toString();
+    }
+
+    private String createPage() {
+        final StringBuilder sb = new StringBuilder("<html><head><title>Test</title></head><body>");
+        for(int i=0; i<2000; i++) {
+            sb.append("<p class=\"item\">Item ").append(i).append(" &amp; more</p>");
+        }
+        sb.append("</body></html>");
+        return sb.toString();
+    }
+
+    @Test
+    public void testBuffered() throws IOException, SAXException {
+        final String result = render(Collections.<String, Object>emptyMap(), "<html><body><p>Hello</p></body></html>");
+        assertEquals("<!DOCTYPE html>" + System.lineSeparator() + "<html><body><p>Hello</p></body></html>", result);
+    }
+
+    @Test
+    public void testBufferedNonAscii() throws IOException, SAXException {
+        final String result = render(Collections.<String, Object>emptyMap(), "<p>\u2602\uD83D\uDE03 \u00fc</p>");
+        assertEquals("<!DOCTYPE html>" + System.lineSeparator() + "<html><body><p>\u2602\uD83D\uDE03 &uuml;</p></body></html>", result);
+    }
+
+    @Test
+    public void testStreamingEqualsBuffered() throws IOException, SAXException {
+        final String page = createPage();
+        final Map<String, Object> streaming = new HashMap<>();
+        streaming.put(HtmlGeneratorFactory.PROPERTY_STREAMING, true);
+
+        assertEquals(render(Collections.<String, Object>emptyMap(), page), render(streaming, page));
+    }
+
+    @Test
+    public void testSpilledEqualsBuffered() throws IOException, SAXException {
+        final String page = createPage() + "<p>\u2602\uD83D\uDE03 \u00fc</p>";
+        final Map<String, Object> spilled = new HashMap<>();
+        spilled.put(HtmlGeneratorFactory.PROPERTY_SPILL_THRESHOLD, 1000L);
+
+        assertEquals(render(Collections.<String, Object>emptyMap(), page), render(spilled, page));
+        // the spill file is removed once the generator is disposed
+        assertEquals(0, spillFolder.getRoot().list().length);
+    }
+
+    @Test
+    public void testSpillFailureIsReported() throws IOException {
+        // the spill file fails once it holds more than 1000 bytes, like a full disk
+        final OutputBuffer buffer = new OutputBuffer(new CharSegmentPool(HtmlGeneratorFactory.SEGMENT_SIZE, 0),
+                spillFolder.getRoot()) {
+
+            @Override
+            OutputStream openSpillFile(final File file) throws IOException {
+                return new FilterOutputStream(new FileOutputStream(file)) {
+
+                    private int count;
+
+                    @Override
+                    public void write(final int b) throws IOException {
+                        if ( ++count > 1000 ) {
+                            throw new IOException("No space left on device");
+                        }
+                        super.write(b);
+                    }
+                };
+            }
+        };
+        buffer.setSpillThreshold(100);
+        final PrintWriter writer = new PrintWriter(buffer);
+        final String page = createPage();
+        for(int i=0; i<page.length(); i+=50) {
+            writer.write(page, i, Math.min(50, page.length() - i));
+        }
+        writer.flush();
+        // the print writer swallows the failure
+        assertTrue(writer.checkError());
+        try {
+            buffer.getInputStream();
+            fail("Truncated output must not be read");
+        } catch (final IOException expected) {
+            // expected
+        }
+        // the spill file is removed right away
+        assertEquals(0, spillFolder.getRoot().list().length);
+        buffer.release();
+    }
+
+    @Test
+    public void testFlush() throws IOException, SAXException {
+        final Map<String, Object> flush = new HashMap<>();
+        flush.put(HtmlGeneratorFactory.PROPERTY_FLUSH, true);
+
+        final StringWriter output = new StringWriter();
+        final HtmlGenerator generator = createGenerator(flush, output);
+        try {
+            final PrintWriter writer = generator.getWriter();
+            writer.write("<html><head><title>Test</title><link rel=\"stylesheet\" href=\"a.css\">");
+            writer.flush();
+            assertEquals("<!DOCTYPE html>" + System.lineSeparator()
+                    + "<html><head><title>Test</title><link rel=\"stylesheet\" href=\"a.css\">", output.toString());
+
+            writer.write("</head><body><p>Hello</p></body></html>");
+            writer.flush();
+            generator.finished();
+        } finally {
+            generator.dispose();
+        }
+        assertEquals("<!DOCTYPE html>" + System.lineSeparator()
+                + "<html><head><title>Test</title><link rel=\"stylesheet\" href=\"a.css\"></head><body><p>Hello</p></body></html>",
+                output.toString());
+    }
+
+    @Test
+    public void testStreamingWithoutOutput() throws IOException, SAXException {
+        final Map<String, Object> streaming = new HashMap<>();
+        streaming.put(HtmlGeneratorFactory.PROPERTY_STREAMING, true);
+
+        assertEquals(render(Collections.<String, Object>emptyMap(), ""), render(streaming, ""));
+    }
+
+    private void assertPipelineRunsOnRequestThread(final Map<String, Object> generatorConfig) throws IOException, SAXException {
+        final Thread requestThread = Thread.currentThread();
+        final AtomicInteger events = new AtomicInteger();
+        final AtomicBoolean otherThread = new AtomicBoolean();
+        final HtmlGenerator generator = createGenerator(generatorConfig, new StringWriter());
+        generator.setContentHandler(new DefaultHandler() {
+
+            @Override
+            public void startElement(String uri, String localName, String qName, Attributes atts) {
+                events.incrementAndGet();
+                if ( Thread.currentThread() != requestThread ) {
+                    otherThread.set(true);
+                }
+            }
+        });
+        try {
+            final PrintWriter writer = generator.getWriter();
+            writer.write(createPage());
+            writer.flush();
+            generator.finished();
+        } finally {
+            generator.dispose();
+        }
+        assertEquals(2004, events.get());
+        assertFalse(otherThread.get());
+    }
+
+    @Test
+    public void testStreamingRunsPipelineOnRequestThread() throws IOException, SAXException {
+        assertPipelineRunsOnRequestThread(Collections.<String, Object>singletonMap(HtmlGeneratorFactory.PROPERTY_STREAMING, true));
+        assertPipelineRunsOnRequestThread(Collections.<String, Object>singletonMap(HtmlGeneratorFactory.PROPERTY_FLUSH, true));
+    }
+}
@@ -0,0 +1,156 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.sling.rewriter.impl.components;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.Map;
+
+import org.apache.sling.api.SlingHttpServletResponse;
+import org.apache.sling.api.wrappers.ValueMapDecorator;
+import org.apache.sling.rewriter.ProcessingContext;
+import org.apache.sling.rewriter.Serializer;
+import org.apache.sling.rewriter.impl.ProcessingComponentConfigurationImpl;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mockito;
+import org.xml.sax.SAXException;
+import org.xml.sax.ext.LexicalHandler;
+import org.xml.sax.helpers.AttributesImpl;
+
+public class Utf8Html5SerializerTest {
+
+    private ProcessingContext context;
+    private SlingHttpServletResponse response;
+    private StringWriter writer;
+    private ByteArrayOutputStream output;
+
+    @Before
+    public void init() throws IOException {
+        context = Mockito.mock(ProcessingContext.class);
+        response = Mockito.mock(SlingHttpServletResponse.class);
+        Mockito.when(response.getCharacterEncoding()).thenReturn("UTF-8");
+        writer = new StringWriter();
+        output = new ByteArrayOutputStream();
+        Mockito.when(context.getResponse()).thenReturn(response);
+        Mockito.when(context.getWriter()).thenReturn(new PrintWriter(writer));
+        Mockito.when(context.getOutputStream()).thenReturn(output);
+    }
+
+    private void serialize(final Serializer serializer) throws SAXException {
+        serializer.startDocument();
+        AttributesImpl atts = new AttributesImpl();
+        atts.addAttribute("", "lang", "", "string", "de");
+        serializer.startElement("", "html", "html", atts);
+        serializer.startElement("", "body", "body", new AttributesImpl());
+        final char[] comment = "[if IE]><p>IE</p><![endif]".toCharArray();
+        ((LexicalHandler) serializer).comment(comment, 0, comment.length);
+        ((LexicalHandler) serializer).comment(comment, 7, 9);
+
+        atts = new AttributesImpl();
+        atts.addAttribute("", "class", "", "string", "teaser");
+        atts.addAttribute("", "data-café", "", "string", "\"Grüße\" & <日本> 😃");
+        atts.addAttribute("", "shape", "", "string", "dropped");
+        serializer.startElement("", "a", "a", atts);
+        final char[] text = "Tom & Jerry  € 日本 😃🍀 <b>".toCharArray();
+        // split the text inside of a surrogate pair
+        serializer.characters(text, 0, 19);
+        serializer.characters(text, 19, text.length - 19);
+        serializer.endElement("", "a", "a");
+
+        atts = new AttributesImpl();
+        atts.addAttribute("", "src", "", "string", "/image.png");
+        atts.addAttribute("", "endSlash", "endSlash", null, null);
+        serializer.startElement("", "img", "img", atts);
+        serializer.endElement("", "img", "img");
+
+        serializer.startElement("", "script", "script", new AttributesImpl());
+        final char[] script = "if (a < b && c) { x = \"☂\"; }".toCharArray();
+        serializer.characters(script, 0, script.length);
+        serializer.endElement("", "script", "script");
+
+        serializer.endElement("", "body", "body");
+        serializer.endElement("", "html", "html");
+        serializer.endDocument();
+    }
+
+    private void assertSameOutput(final Map<String, Object> config) throws IOException, SAXException {
+        final ProcessingComponentConfigurationImpl componentConfig = new ProcessingComponentConfigurationImpl("/apps/config",
+                new ValueMapDecorator(config));
+        final Html5Serializer expected = new Html5Serializer();
+        expected.init(context, componentConfig);
+        serialize(expected);
+
+        final Serializer serializer = new Utf8Html5SerializerFactory().createSerializer();
+        serializer.init(context, componentConfig);
+        serialize(serializer);
+
+        assertEquals(writer.toString(), new String(output.toByteArray(), StandardCharsets.UTF_8));
+        Mockito.verify(response).setCharacterEncoding("UTF-8");
+    }
+
+    @Test
+    public void testSameOutputAsHtml5Serializer() throws IOException, SAXException {
+        assertSameOutput(Collections.<String, Object>emptyMap());
+    }
+
+    @Test
+    public void testSameOutputWithMinimalEscaping() throws IOException, SAXException {
+        assertSameOutput(Collections.<String, Object>singletonMap(Html5SerializerFactory.PROPERTY_ESCAPING,
+                Html5SerializerFactory.ESCAPING_MINIMAL));
+    }
+
+    @Test
+    public void testSameOutputWhenMinified() throws IOException, SAXException {
+        assertSameOutput(Collections.<String, Object>singletonMap(Html5SerializerFactory.PROPERTY_MINIFY, true));
+    }
+
+    @Test
+    public void testMalformedSurrogates() throws IOException, SAXException {
+        final Serializer serializer = new Utf8Html5Serializer();
+        serializer.init(context, new ProcessingComponentConfigurationImpl("/apps/config",
+                new ValueMapDecorator(Collections.<String, Object>emptyMap())));
+        serializer.characters("a\ud83d".toCharArray(), 0, 2);
+        serializer.startElement("", "p", "p", new AttributesImpl());
+        serializer.characters("\ude03b".toCharArray(), 0, 2);
+        serializer.endDocument();
+
+        assertEquals("a?<p>?b", new String(output.toByteArray(), StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void testLargeOutput() throws IOException, SAXException {
+        final Serializer serializer = new Utf8Html5Serializer();
+        serializer.init(context, new ProcessingComponentConfigurationImpl("/apps/config",
+                new ValueMapDecorator(Collections.<String, Object>emptyMap())));
+        final StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 5000; i++) {
+            sb.append("ü日x");
+        }
+        final char[] text = sb.toString().toCharArray();
+        serializer.characters(text, 0, text.length);
+        serializer.endDocument();
+
+        assertEquals(sb.toString().replace("ü", "&uuml;"), new String(output.toByteArray(), StandardCharsets.UTF_8));
+    }
+}